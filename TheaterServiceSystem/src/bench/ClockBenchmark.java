@@ -0,0 +1,155 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import server.Clock;
+import server.LogicalClock;
+
+/**
+ * ClockBenchmark compares the lock-free LogicalClock with the clock the server used before it, which took a lock and
+ * created a Clock on every update. Each thread merges a received timestamp and then ticks, as when a message is received
+ * and another is sent. It prints the updates per second of all threads together, and the bytes allocated per update.
+ *
+ * Run: java bench.ClockBenchmark [seconds per measurement]
+ *
+ */
+public class ClockBenchmark {
+
+	/**
+	 * The clock of the server before LogicalClock.
+	 */
+	static class LockedClock{
+		private Clock clock = new Clock(0, 0);
+		private final Object clock_lock = new Object();
+
+		Clock tick(){
+			synchronized(clock_lock){
+				return clock = new Clock(clock.timestamp + 1, clock.pid);
+			}
+		}
+
+		Clock merge(Clock timestamp){
+			synchronized(clock_lock){
+				return clock = new Clock(Math.max(clock.timestamp, timestamp.timestamp) + 1, clock.pid);
+			}
+		}
+	}
+
+	/**
+	 * The work of one thread.
+	 */
+	interface Updates{
+		/**
+		 * Make some updates.
+		 * @param n The number of pairs of updates.
+		 * @param remote The timestamp received.
+		 * @return A value depending on the updates.
+		 */
+		long run(int n, long remote);
+	}
+
+	private static volatile long sink;	//Keeps the results alive
+
+	/**
+	 * Run the updates on some threads for a time.
+	 * @return The updates per second and the bytes allocated per update.
+	 */
+	private static double[] measure(final Updates updates, int threads, final long nanos) throws InterruptedException{
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final long[] counts = new long[threads];
+		final long[] bytes = new long[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] t = new Thread[threads];
+		for(int i = 0; i < threads; i++){
+			final int id = i;
+			t[i] = new Thread(){
+				@Override
+				public void run(){
+					long before = allocatedBytes();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long n = 0, remote = id, s = 0;
+					while(!stop.get()){
+						s += updates.run(100, remote += 7);
+						n += 200;
+					}
+					sink = s;
+					counts[id] = n;
+					bytes[id] = allocatedBytes() - before;
+				}
+			};
+			t[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(nanos / 1000000);
+		stop.set(true);
+		for(Thread thread : t)
+			thread.join();
+		long elapsed = System.nanoTime() - begin;
+		long total = 0, allocated = 0;
+		for(int i = 0; i < threads; i++){
+			total += counts[i];
+			allocated += bytes[i];
+		}
+		return new double[]{total * 1e9 / elapsed, allocated < 0? -1: (double) allocated / total};
+	}
+
+	/**
+	 * Return the bytes allocated by the current thread, or a negative number if the JVM does not tell.
+	 * @return The bytes.
+	 */
+	private static long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+		return Long.MIN_VALUE / 2;
+	}
+
+	public static void main(String[] args) throws InterruptedException{
+		double seconds = args.length > 0? Double.parseDouble(args[0]): 1;
+		long nanos = (long) (seconds * 1e9);
+		final LockedClock locked = new LockedClock();
+		final LogicalClock lockFree = new LogicalClock(0);
+		Updates lockedUpdates = new Updates(){
+			@Override
+			public long run(int n, long remote){
+				long s = 0;
+				Clock received = new Clock(remote, 1);	//Created by decoding in the server, not counted
+				for(int i = 0; i < n; i++){
+					s += locked.merge(received).timestamp;
+					s += locked.tick().timestamp;
+				}
+				return s;
+			}
+		};
+		Updates lockFreeUpdates = new Updates(){
+			@Override
+			public long run(int n, long remote){
+				long s = 0;
+				for(int i = 0; i < n; i++){
+					s += lockFree.merge(remote + i);
+					s += lockFree.tick();
+				}
+				return s;
+			}
+		};
+		int max = Math.max(8, Runtime.getRuntime().availableProcessors());
+		for(int threads = 1; threads <= max; threads *= 2){	//Warm up
+			measure(lockedUpdates, threads, nanos / 4);
+			measure(lockFreeUpdates, threads, nanos / 4);
+		}
+		System.out.println(String.format("%-8s %-10s %16s %12s", "threads", "clock", "updates/s", "bytes/update"));
+		for(int threads = 1; threads <= max; threads *= 2){
+			double[] r = measure(lockedUpdates, threads, nanos);
+			System.out.println(String.format("%-8d %-10s %16.0f %12.1f", threads, "locked", r[0], r[1]));
+			r = measure(lockFreeUpdates, threads, nanos);
+			System.out.println(String.format("%-8d %-10s %16.0f %12.1f", threads, "lock-free", r[0], r[1]));
+		}
+	}
+}
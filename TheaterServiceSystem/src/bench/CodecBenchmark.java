@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.IOException;
+
+import message.*;
+import server.Clock;
+
+/**
+ * CodecBenchmark compares the binary codec with Java serialization on typical messages: the size of a frame, and how
+ * many messages per second each format encodes and decodes on one thread.
+ *
+ * Run: java bench.CodecBenchmark [seconds per measurement]
+ *
+ */
+public class CodecBenchmark {
+
+	private static volatile Object sink;	//Keeps the results alive, so the work is not optimized away
+
+	/**
+	 * Messages as they are sent by the servers and the clients.
+	 * @return The names and the messages.
+	 */
+	private static Object[][] samples(){
+		return new Object[][]{
+			{"ACKNOWLEDGE_READ", new Message(MessageType.ACKNOWLEDGE_READ, new Clock(123456, 2), new Clock(123460, 1), "main")},
+			{"CS_REQUEST_WRITE", new Message(MessageType.CS_REQUEST_WRITE, null, new Clock(123456, 2), "main")},
+			{"RESERVE_SEAT", new Message(MessageType.RESERVE_SEAT, "alice 3", null, null)},
+			{"RESPOND_TO_CLIENT", new Message(MessageType.RESPOND_TO_CLIENT, "Congratulations, alice! You have successfully reserved Seat[18, 19, 20]", null)},
+			{"TOKEN_STATUS", new Message(MessageType.TOKEN_STATUS, new long[]{3, 1, 7, 0, 2}, new Clock(98765, 4), "main")},
+		};
+	}
+
+	/**
+	 * Measure the encoding rate of a message.
+	 * @return Messages per second.
+	 */
+	private static double encodeRate(Message msg, MessageCodec.Format format, long nanos) throws IOException{
+		long n = 0;
+		long start = System.nanoTime(), end = start + nanos;
+		long now;
+		do{
+			for(int i = 0; i < 1000; i++)
+				sink = MessageCodec.encode(msg, format);
+			n += 1000;
+		}while((now = System.nanoTime()) < end);
+		return n * 1e9 / (now - start);
+	}
+
+	/**
+	 * Measure the decoding rate of a frame.
+	 * @return Messages per second.
+	 */
+	private static double decodeRate(byte[] frame, long nanos) throws IOException{
+		long n = 0;
+		long start = System.nanoTime(), end = start + nanos;
+		long now;
+		do{
+			for(int i = 0; i < 1000; i++)
+				sink = MessageCodec.decode(frame, 4, frame.length - 4);
+			n += 1000;
+		}while((now = System.nanoTime()) < end);
+		return n * 1e9 / (now - start);
+	}
+
+	public static void main(String[] args) throws IOException{
+		double seconds = args.length > 0? Double.parseDouble(args[0]): 1;
+		long nanos = (long) (seconds * 1e9);
+		Object[][] samples = samples();
+		for(Object[] sample : samples)	//Warm up both paths before measuring
+			for(MessageCodec.Format format : MessageCodec.Format.values()){
+				encodeRate((Message) sample[1], format, nanos / 2);
+				decodeRate(MessageCodec.encode((Message) sample[1], format), nanos / 2);
+			}
+		System.out.println(String.format("%-18s %-7s %7s %14s %14s", "message", "format", "bytes", "encode/s", "decode/s"));
+		for(Object[] sample : samples){
+			Message msg = (Message) sample[1];
+			for(MessageCodec.Format format : MessageCodec.Format.values()){
+				byte[] frame = MessageCodec.encode(msg, format);
+				System.out.println(String.format("%-18s %-7s %7d %14.0f %14.0f", sample[0], format.name().toLowerCase(),
+						frame.length, encodeRate(msg, format, nanos), decodeRate(frame, nanos)));
+			}
+		}
+	}
+}
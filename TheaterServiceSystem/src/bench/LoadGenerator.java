@@ -0,0 +1,343 @@
+package bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+
+import client.TheaterClient;
+
+/**
+ * LoadGenerator runs simulated customers against the servers of a cluster and reports the throughput, the latency
+ * percentiles and the failed operations of every server. Every customer has its own TheaterClient, which sends to the
+ * server it finds best, and keeps up to -pipeline requests outstanding. A customer reserves seats under names of its own, then
+ * searches and releases them, in the proportions of -mix.
+ *
+ * A response starting with "Sorry" (no seats left, nothing reserved) is counted as rejected; an operation which gets no
+ * response at all, because no server can be reached, is counted as failed.
+ *
+ * Run: java bench.LoadGenerator <server information file> [-customers n] [-duration seconds] [-warmup seconds]
+ *          [-mix reserve:search:delete] [-seats n] [-pipeline n] [-sections name,name,...] [-json file]
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * The operations of a customer.
+	 */
+	enum Op{ RESERVE, SEARCH, DELETE }
+
+	/**
+	 * Latencies recorded, to compute percentiles.
+	 */
+	static class Latencies{
+		private long[] values = new long[1024];	//In ns
+		private int size = 0;
+		private boolean sorted = true;
+
+		void add(long ns){
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = ns;
+			sorted = false;
+		}
+
+		void addAll(Latencies other){
+			for(int i = 0; i < other.size; i++)
+				add(other.values[i]);
+		}
+
+		int size(){
+			return size;
+		}
+
+		/**
+		 * Return a percentile.
+		 * @param p The percentile, between 0 and 1.
+		 * @return The latency(ns), 0 if nothing is recorded.
+		 */
+		long percentile(double p){
+			if(size == 0) return 0;
+			if(!sorted){
+				Arrays.sort(values, 0, size);
+				sorted = true;
+			}
+			int index = (int) Math.ceil(p * size) - 1;	//The nearest rank
+			return values[Math.max(0, Math.min(size - 1, index))];
+		}
+	}
+
+	/**
+	 * What is recorded for a server, or for all of them.
+	 */
+	static class Stats{
+		final EnumMap<Op, Latencies> latencies = new EnumMap<Op, Latencies>(Op.class);	//Of the answered operations
+		final Latencies all = new Latencies();	//Of every answered operation
+		final int[] rejected = new int[Op.values().length + 1];	//By operation, the last is the total
+		final int[] failed = new int[Op.values().length + 1];	//By operation, the last is the total
+
+		Stats(){
+			for(Op op : Op.values())
+				latencies.put(op, new Latencies());
+		}
+
+		void add(Stats other){
+			for(Op op : Op.values())
+				latencies.get(op).addAll(other.latencies.get(op));
+			all.addAll(other.all);
+			for(int i = 0; i < rejected.length; i++){
+				rejected[i] += other.rejected[i];
+				failed[i] += other.failed[i];
+			}
+		}
+	}
+
+	/**
+	 * The result of an operation.
+	 */
+	static class Sample{
+		final Op op;
+		final long start;		//The time(ns) the operation was sent
+		long end;				//The time(ns) its response was received
+		String server;			//The server which answered, or which the operation was last sent to if it failed
+		String response;		//Null if it failed
+
+		Sample(Op op, long start){
+			this.op = op;
+			this.start = start;
+		}
+	}
+
+	//Options
+	private static int customers = 10;
+	private static double duration = 10;
+	private static double warmup = 2;
+	private static int[] mix = {50, 30, 20};	//The weights of RESERVE, SEARCH and DELETE
+	private static int maxSeats = 2;
+	private static int pipeline = 1;
+	private static String[] sections = {null};
+	private static File json = null;
+
+	/**
+	 * A simulated customer.
+	 */
+	static class Customer extends Thread{
+		final int id;
+		final TheaterClient client;
+		final long measureFrom;		//The end of the warm up(ns)
+		final long until;			//The end of the run(ns)
+		final HashMap<String, Stats> byServer = new HashMap<String, Stats>();	//Only used by this thread
+		private final Random random;
+		private final ArrayList<String[]> reserved = new ArrayList<String[]>();	//The names and sections reserved
+		private int names = 0;
+
+		Customer(int id, TheaterClient client, long measureFrom, long until){
+			super("customer-"+id);
+			this.id = id;
+			this.client = client;
+			this.measureFrom = measureFrom;
+			this.until = until;
+			this.random = new Random(id);
+		}
+
+		@Override
+		public void run(){
+			ArrayDeque<CompletableFuture<Sample>> window = new ArrayDeque<CompletableFuture<Sample>>();
+			while(System.nanoTime() < until || !window.isEmpty()){
+				if(window.size() < pipeline && System.nanoTime() < until)
+					window.add(next());
+				else
+					record(window.poll());
+			}
+			client.close();
+		}
+
+		/**
+		 * Send the next operation of this customer.
+		 * @return The future of its result.
+		 */
+		private CompletableFuture<Sample> next(){
+			int r = random.nextInt(mix[0] + mix[1] + mix[2]);
+			Op op = r < mix[0] || reserved.isEmpty()? Op.RESERVE: r < mix[0] + mix[1]? Op.SEARCH: Op.DELETE;
+			final Sample sample = new Sample(op, System.nanoTime());
+			final TheaterClient.Response f;
+			if(op == Op.RESERVE){
+				String[] name = {"c"+id+"n"+(names++), sections[random.nextInt(sections.length)]};
+				reserved.add(name);
+				f = client.reserve(name[0], 1 + random.nextInt(maxSeats), name[1]);
+			}else if(op == Op.SEARCH){
+				String[] name = reserved.get(random.nextInt(reserved.size()));
+				f = client.search(name[0], name[1]);
+			}else{
+				String[] name = reserved.remove(random.nextInt(reserved.size()));
+				f = client.delete(name[0], name[1]);
+			}
+			return f.handle(new BiFunction<String, Throwable, Sample>(){
+				@Override
+				public Sample apply(String response, Throwable failure){
+					sample.end = System.nanoTime();
+					sample.response = response;
+					InetSocketAddress server = f.server();
+					sample.server = server == null? "none": server.getHostString()+":"+server.getPort();
+					return sample;
+				}
+			});
+		}
+
+		/**
+		 * Wait for the result of an operation and record it.
+		 * @param f The future of the result.
+		 */
+		private void record(CompletableFuture<Sample> f){
+			Sample sample;
+			try {
+				sample = f.get();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ExecutionException e) {	//Not thrown, handle() catches the failure.
+				return;
+			}
+			if(sample.start < measureFrom) return;
+			Stats stats = byServer.get(sample.server);
+			if(stats == null) byServer.put(sample.server, stats = new Stats());
+			int total = Op.values().length;
+			if(sample.response == null){
+				stats.failed[sample.op.ordinal()]++;
+				stats.failed[total]++;
+				return;
+			}
+			if(sample.response.startsWith("Sorry")){
+				stats.rejected[sample.op.ordinal()]++;
+				stats.rejected[total]++;
+			}
+			stats.latencies.get(sample.op).add(sample.end - sample.start);
+			stats.all.add(sample.end - sample.start);
+		}
+	}
+
+	/**
+	 * Format a time in ms.
+	 * @param ns The time(ns).
+	 * @return The text.
+	 */
+	private static String ms(long ns){
+		return String.format("%.2f", ns / 1e6);
+	}
+
+	/**
+	 * Format the results of a server or an operation as a row of the table.
+	 * @param name The name of the row.
+	 * @param stats The results.
+	 * @param op The operation, null for all of them.
+	 * @param seconds The time measured.
+	 * @return The row.
+	 */
+	private static String row(String name, Stats stats, Op op, double seconds){
+		Latencies l = op == null? stats.all: stats.latencies.get(op);
+		int i = op == null? Op.values().length: op.ordinal();
+		int rejected = stats.rejected[i], failed = stats.failed[i];
+		return String.format("%-22s %9d %10.0f %9s %9s %9s %9s %9d %7d", name, l.size(), l.size() / seconds,
+				ms(l.percentile(0.5)), ms(l.percentile(0.99)), ms(l.percentile(0.999)), ms(l.percentile(1)), rejected, failed);
+	}
+
+	/**
+	 * Format the results of a server or an operation as a JSON object.
+	 * @see #row(String, Stats, Op, double)
+	 */
+	private static String jsonRow(String name, Stats stats, Op op, double seconds){
+		Latencies l = op == null? stats.all: stats.latencies.get(op);
+		int i = op == null? Op.values().length: op.ordinal();
+		int rejected = stats.rejected[i], failed = stats.failed[i];
+		return String.format("{\"name\": \"%s\", \"ops\": %d, \"opsPerSecond\": %.1f, \"p50Ms\": %s, \"p99Ms\": %s, "
+				+"\"p999Ms\": %s, \"maxMs\": %s, \"rejected\": %d, \"failed\": %d}", name, l.size(), l.size() / seconds,
+				ms(l.percentile(0.5)), ms(l.percentile(0.99)), ms(l.percentile(0.999)), ms(l.percentile(1)), rejected, failed);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		if(args.length < 1){
+			System.err.println("Usage: java bench.LoadGenerator <server information file> [-customers n] [-duration seconds]"
+					+" [-warmup seconds] [-mix reserve:search:delete] [-seats n] [-pipeline n] [-sections name,...] [-json file]");
+			return;
+		}
+		for(int i = 1; i < args.length; i++){
+			if(args[i].equals("-customers") && i+1 < args.length)
+				customers = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-duration") && i+1 < args.length)
+				duration = Double.parseDouble(args[++i]);
+			else if(args[i].equals("-warmup") && i+1 < args.length)
+				warmup = Double.parseDouble(args[++i]);
+			else if(args[i].equals("-mix") && i+1 < args.length){
+				String[] splits = args[++i].split(":");
+				for(int j = 0; j < 3; j++)
+					mix[j] = Integer.parseInt(splits[j]);
+			}
+			else if(args[i].equals("-seats") && i+1 < args.length)
+				maxSeats = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-pipeline") && i+1 < args.length)
+				pipeline = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-sections") && i+1 < args.length)
+				sections = args[++i].split(",");
+			else if(args[i].equals("-json") && i+1 < args.length)
+				json = new File(args[++i]);
+			else
+				System.err.println("Unknown option: "+args[i]);
+		}
+		List<InetSocketAddress> servers = TheaterClient.readServers(args[0]);
+		System.out.println("Running "+customers+" customers on "+servers.size()+" servers for "+warmup+"s of warm up and "
+				+duration+"s, mix "+mix[0]+":"+mix[1]+":"+mix[2]+", up to "+pipeline+" requests outstanding per customer");
+		long start = System.nanoTime();
+		long measureFrom = start + (long) (warmup * 1e9);
+		long until = measureFrom + (long) (duration * 1e9);
+		Customer[] c = new Customer[customers];
+		for(int i = 0; i < customers; i++){
+			c[i] = new Customer(i, new TheaterClient(servers), measureFrom, until);
+			c[i].start();
+		}
+		for(Customer customer : c)
+			customer.join();
+		double seconds = (System.nanoTime() - measureFrom) / 1e9;
+
+		TreeMap<String, Stats> byServer = new TreeMap<String, Stats>();
+		Stats total = new Stats();
+		for(Customer customer : c)
+			for(Map.Entry<String, Stats> entry : customer.byServer.entrySet()){
+				Stats stats = byServer.get(entry.getKey());
+				if(stats == null) byServer.put(entry.getKey(), stats = new Stats());
+				stats.add(entry.getValue());
+				total.add(entry.getValue());
+			}
+		System.out.println(String.format("%-22s %9s %10s %9s %9s %9s %9s %9s %7s", "server/operation", "ops", "ops/s",
+				"p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "rejected", "failed"));
+		for(Map.Entry<String, Stats> entry : byServer.entrySet())
+			System.out.println(row(entry.getKey(), entry.getValue(), null, seconds));
+		for(Op op : Op.values())
+			System.out.println(row(op.name().toLowerCase(), total, op, seconds));
+		System.out.println(row("all", total, null, seconds));
+
+		if(json != null){
+			PrintWriter out = new PrintWriter(new FileWriter(json));
+			try{
+				out.println("{");
+				out.println(String.format("  \"customers\": %d, \"pipeline\": %d, \"durationSeconds\": %.1f, \"mix\": [%d, %d, %d],",
+						customers, pipeline, seconds, mix[0], mix[1], mix[2]));
+				out.println("  \"all\": "+jsonRow("all", total, null, seconds)+",");
+				out.println("  \"servers\": [");
+				int n = 0;
+				for(Map.Entry<String, Stats> entry : byServer.entrySet())
+					out.println("    "+jsonRow(entry.getKey(), entry.getValue(), null, seconds)+(++n < byServer.size()? ",": ""));
+				out.println("  ],");
+				out.println("  \"operations\": [");
+				n = 0;
+				for(Op op : Op.values())
+					out.println("    "+jsonRow(op.name().toLowerCase(), total, op, seconds)+(++n < Op.values().length? ",": ""));
+				out.println("  ]");
+				out.println("}");
+			}finally{
+				out.close();
+			}
+			System.out.println("Wrote "+json);
+		}
+	}
+}
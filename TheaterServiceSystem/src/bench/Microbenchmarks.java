@@ -0,0 +1,514 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import message.*;
+import server.Clock;
+import server.LogicalClock;
+import server.RequestQueue;
+import server.TheaterService;
+import server.TheaterUpdate;
+
+/**
+ * Microbenchmarks measures the in-memory hot paths of a server on their own: the operations of TheaterService at venue
+ * sizes from 100 to 1M seats, the size and the time of encoding what CS_RELEASE and SERVER_SYNC_DATA ship, the ordering
+ * of requests in the Lamport request queue, and the logical clock under contention.
+ *
+ * Every benchmark runs some warm up iterations, then measured iterations of a fixed time; the score is the mean of the
+ * iterations in operations per second, with the half width of its 99.9% confidence interval as the error. The state a
+ * benchmark changes is put back between batches of operations, outside the measured time, so every iteration measures
+ * the same state. The results are printed as a table, and written as JSON with -json.
+ *
+ * Run: java bench.Microbenchmarks [-time seconds] [-warmup iterations] [-iterations n] [-filter prefix] [-json file]
+ *
+ */
+public class Microbenchmarks {
+
+	private static final int[] VENUES = {100, 10000, 1000000};	//The venue sizes of the service benchmarks
+	private static final int[] QUEUES = {4, 64, 1024};			//The requests queued in the queue benchmarks
+	private static final int[] THREADS = {1, 2, 4, 8};			//The threads of the clock benchmark
+	private static final int SEATS_PER_NAME = 2;				//The seats of every reservation
+
+	private static volatile Object sink;	//Keeps the results alive, so the work is not optimized away
+
+	/**
+	 * A benchmark. Each of its threads calls run() in a loop, and reset() after every call, outside the measured time.
+	 */
+	static abstract class Benchmark{
+		final String name;
+		final String param;		//The name of the parameter, null if there is none
+		final int value;		//The value of the parameter
+		final int threads;
+		final int batch;		//The operations of a call to run()
+
+		Benchmark(String name, String param, int value, int threads, int batch){
+			this.name = name;
+			this.param = param;
+			this.value = value;
+			this.threads = threads;
+			this.batch = batch;
+		}
+
+		/**
+		 * Prepare the state, before any iteration.
+		 */
+		void setUp() throws Exception{}
+
+		/**
+		 * Run a batch of operations.
+		 * @param thread The index of the calling thread.
+		 */
+		abstract void run(int thread) throws Exception;
+
+		/**
+		 * Put back the state changed by run(), outside the measured time.
+		 * @param thread The index of the calling thread.
+		 */
+		void reset(int thread) throws Exception{}
+
+		/**
+		 * Return the size of what the benchmark encodes.
+		 * @return The bytes, -1 if it encodes nothing.
+		 */
+		long bytes(){
+			return -1;
+		}
+
+		/**
+		 * Free the state, after the last iteration.
+		 */
+		void tearDown(){}
+	}
+
+	/**
+	 * The result of a benchmark.
+	 */
+	static class Result{
+		final Benchmark benchmark;
+		final double score;		//Operations per second, of all threads together
+		final double error;		//The half width of the confidence interval of the score
+		final long bytes;		//The size of what the benchmark encodes, -1 if it encodes nothing
+
+		Result(Benchmark benchmark, double score, double error, long bytes){
+			this.benchmark = benchmark;
+			this.score = score;
+			this.error = error;
+			this.bytes = bytes;
+		}
+	}
+
+	//Options
+	private static double time = 1;
+	private static int warmups = 3;
+	private static int iterations = 5;
+	private static String filter = "";
+	private static File json = null;
+
+	/**
+	 * Create a service whose seats are half reserved, SEATS_PER_NAME per name.
+	 * @param venue The number of seats.
+	 * @return The service.
+	 */
+	private static TheaterService halfReserved(int venue) throws Exception{
+		TheaterService service = new TheaterService(venue);
+		for(int i = 0; i < venue / 2 / SEATS_PER_NAME; i++)
+			service.reserve("name"+i, SEATS_PER_NAME);
+		service.takeUpdate();
+		return service;
+	}
+
+	/**
+	 * Create the names used by a benchmark beforehand, so building them is not measured.
+	 * @param prefix The prefix of the names.
+	 * @param count The number of names.
+	 * @return The names.
+	 */
+	private static String[] names(String prefix, int count){
+		String[] ret = new String[count];
+		for(int i = 0; i < count; i++)
+			ret[i] = prefix+i;
+		return ret;
+	}
+
+	/**
+	 * Return the benchmarks of TheaterService.
+	 * @param venue The number of seats.
+	 * @return The benchmarks.
+	 */
+	private static List<Benchmark> serviceBenchmarks(final int venue){
+		final int batch = Math.min(100, venue / 2 / SEATS_PER_NAME);	//The free half of the venue holds a batch
+		final String[] fresh = names("fresh", batch);
+		final String[] reserved = names("name", venue / 2 / SEATS_PER_NAME);
+		final TheaterService[] service = new TheaterService[1];
+		ArrayList<Benchmark> ret = new ArrayList<Benchmark>();
+		ret.add(new Benchmark("service.reserve", "seats", venue, 1, batch){
+			@Override
+			void setUp() throws Exception{
+				service[0] = halfReserved(venue);
+			}
+
+			@Override
+			void run(int thread) throws Exception{
+				for(String name : fresh)
+					sink = service[0].reserve(name, SEATS_PER_NAME);
+			}
+
+			@Override
+			void reset(int thread) throws Exception{
+				for(String name : fresh)
+					service[0].delete(name);
+				service[0].takeUpdate();
+			}
+
+			@Override
+			void tearDown(){
+				service[0] = null;
+			}
+		});
+		ret.add(new Benchmark("service.delete", "seats", venue, 1, batch){
+			@Override
+			void setUp() throws Exception{
+				service[0] = halfReserved(venue);
+				reset(0);
+			}
+
+			@Override
+			void run(int thread) throws Exception{
+				for(String name : fresh)
+					sink = service[0].delete(name);
+			}
+
+			@Override
+			void reset(int thread) throws Exception{
+				for(String name : fresh)
+					service[0].reserve(name, SEATS_PER_NAME);
+				service[0].takeUpdate();
+			}
+
+			@Override
+			void tearDown(){
+				service[0] = null;
+			}
+		});
+		ret.add(new Benchmark("service.search", "seats", venue, 1, 1000){
+			private final Random random = new Random(1);
+
+			@Override
+			void setUp() throws Exception{
+				service[0] = halfReserved(venue);
+			}
+
+			@Override
+			void run(int thread) throws Exception{
+				for(int i = 0; i < 1000; i++)
+					sink = service[0].search(reserved[random.nextInt(reserved.length)]);
+			}
+
+			@Override
+			void tearDown(){
+				service[0] = null;
+			}
+		});
+		final byte[][] frame = new byte[1][];
+		ret.add(new Benchmark("service.encode", "seats", venue, 1, 1){
+			@Override
+			void setUp() throws Exception{
+				service[0] = halfReserved(venue);
+				frame[0] = MessageCodec.encode(new Message(MessageType.CS_RELEASE, service[0].copy(), new Clock(1, 0)));
+			}
+
+			@Override
+			void run(int thread) throws Exception{	//As a whole service is shipped by CS_RELEASE and SERVER_SYNC_DATA
+				sink = MessageCodec.encode(new Message(MessageType.CS_RELEASE, service[0].copy(), new Clock(1, 0)));
+			}
+
+			@Override
+			long bytes(){
+				return frame[0].length;
+			}
+		});
+		ret.add(new Benchmark("service.decode", "seats", venue, 1, 1){
+			@Override
+			void setUp() throws Exception{
+				if(frame[0] == null)	//service.encode has not run
+					frame[0] = MessageCodec.encode(new Message(MessageType.CS_RELEASE, halfReserved(venue), new Clock(1, 0)));
+			}
+
+			@Override
+			void run(int thread) throws Exception{
+				sink = MessageCodec.decode(frame[0], 4, frame[0].length - 4);
+			}
+
+			@Override
+			long bytes(){
+				return frame[0].length;
+			}
+
+			@Override
+			void tearDown(){
+				service[0] = null;
+				frame[0] = null;
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Return the benchmark of encoding the update of one reservation, as shipped by CS_RELEASE with -delta.
+	 * @return The benchmark.
+	 */
+	private static Benchmark updateBenchmark(){
+		return new Benchmark("update.encode", null, 0, 1, 1000){
+			private TheaterUpdate update;
+			private long bytes;
+
+			@Override
+			void setUp() throws Exception{
+				TheaterService service = halfReserved(VENUES[VENUES.length - 1]);
+				service.reserve("fresh", SEATS_PER_NAME);
+				update = service.takeUpdate();
+				bytes = MessageCodec.encode(new Message(MessageType.CS_RELEASE, update, new Clock(1, 0))).length;
+			}
+
+			@Override
+			void run(int thread) throws Exception{
+				for(int i = 0; i < 1000; i++)
+					sink = MessageCodec.encode(new Message(MessageType.CS_RELEASE, update, new Clock(1, 0)));
+			}
+
+			@Override
+			long bytes(){
+				return bytes;
+			}
+		};
+	}
+
+	/**
+	 * Return the benchmarks of the request queue: a request is added behind the others and the first is removed, so the
+	 * queue keeps its length, as when the servers take turns in the critical section.
+	 * @param length The number of requests queued.
+	 * @return The benchmarks.
+	 */
+	private static List<Benchmark> queueBenchmarks(final int length){
+		ArrayList<Benchmark> ret = new ArrayList<Benchmark>();
+		ret.add(new Benchmark("queue.treeset", "requests", length, 1, 1000){
+			private final TreeSet<Message> requests = new TreeSet<Message>();	//Only ordered by Message.compareTo
+			private long time;
+
+			@Override
+			void setUp(){
+				for(time = 0; time < length; time++)
+					requests.add(request(time));
+			}
+
+			@Override
+			void run(int thread){
+				for(int i = 0; i < 1000; i++){
+					requests.add(request(time++));
+					sink = requests.pollFirst();
+				}
+			}
+		});
+		ret.add(new Benchmark("queue.requestqueue", "requests", length, 1, 1000){
+			private final RequestQueue requests = new RequestQueue();
+			private long time;
+
+			@Override
+			void setUp(){
+				for(time = 0; time < length; time++)
+					requests.add(request(time));
+			}
+
+			@Override
+			void run(int thread){
+				for(int i = 0; i < 1000; i++){
+					requests.add(request(time));
+					sink = requests.removeFirst((int) ((time - length) % 5));	//The pid of the first request
+					time++;
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Create the request a server makes at a time. The servers take turns, as the pid is the time modulo 5.
+	 * @param time The time.
+	 * @return The request.
+	 */
+	private static Message request(long time){
+		MessageType type = time % 4 == 0? MessageType.CS_REQUEST_WRITE: MessageType.CS_REQUEST_READ;
+		return new Message(type, null, new Clock(time, (int) (time % 5)));
+	}
+
+	/**
+	 * Return the benchmark of the logical clock: every thread merges a received timestamp and then ticks, as when a
+	 * message is received and another is sent.
+	 * @param threads The number of threads.
+	 * @return The benchmark.
+	 */
+	private static Benchmark clockBenchmark(final int threads){
+		return new Benchmark("clock.merge+tick", "threads", threads, threads, 1000){
+			private final LogicalClock clock = new LogicalClock(0);
+			private final long[] remote = new long[threads];
+
+			@Override
+			void run(int thread){
+				long s = 0, r = remote[thread];
+				for(int i = 0; i < 500; i++){
+					s += clock.merge(r += 7);
+					s += clock.tick();
+				}
+				remote[thread] = r;
+				sink = s;
+			}
+		};
+	}
+
+	/**
+	 * Run an iteration of a benchmark.
+	 * @return The operations per second of all threads together.
+	 */
+	private static double iteration(final Benchmark b, final long nanos) throws InterruptedException{
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final long[] ops = new long[b.threads];
+		final long[] timed = new long[b.threads];
+		final Exception[] failure = new Exception[1];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] t = new Thread[b.threads];
+		for(int i = 0; i < b.threads; i++){
+			final int id = i;
+			t[i] = new Thread("benchmark-"+i){
+				@Override
+				public void run(){
+					try {
+						start.await();
+						long n = 0, spent = 0;
+						while(!stop.get()){
+							long begin = System.nanoTime();
+							b.run(id);
+							spent += System.nanoTime() - begin;
+							n += b.batch;
+							b.reset(id);
+						}
+						ops[id] = n;
+						timed[id] = spent;
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			t[i].start();
+		}
+		start.countDown();
+		Thread.sleep(nanos / 1000000);
+		stop.set(true);
+		for(Thread thread : t)
+			thread.join();
+		if(failure[0] != null)
+			throw new IllegalStateException(b.name+" failed", failure[0]);
+		double score = 0;
+		for(int i = 0; i < b.threads; i++)
+			if(timed[i] > 0)
+				score += ops[i] * 1e9 / timed[i];
+		return score;
+	}
+
+	/**
+	 * Run a benchmark: the warm up iterations, then the measured ones.
+	 * @return The result.
+	 */
+	private static Result measure(Benchmark b) throws Exception{
+		long nanos = (long) (time * 1e9);
+		b.setUp();
+		for(int i = 0; i < warmups; i++)
+			iteration(b, nanos);
+		double[] scores = new double[iterations];
+		double mean = 0;
+		for(int i = 0; i < iterations; i++)
+			mean += scores[i] = iteration(b, nanos);
+		mean /= iterations;
+		double variance = 0;
+		for(double score : scores)
+			variance += (score - mean) * (score - mean);
+		double error = iterations < 2? 0: 3.29 * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations);	//z of 99.9%
+		Result r = new Result(b, mean, error, b.bytes());
+		b.tearDown();
+		return r;
+	}
+
+	/**
+	 * Return all benchmarks, in the order they run.
+	 * @return The benchmarks.
+	 */
+	private static List<Benchmark> benchmarks(){
+		ArrayList<Benchmark> ret = new ArrayList<Benchmark>();
+		for(int venue : VENUES)
+			ret.addAll(serviceBenchmarks(venue));
+		ret.add(updateBenchmark());
+		for(int length : QUEUES)
+			ret.addAll(queueBenchmarks(length));
+		for(int threads : THREADS)
+			ret.add(clockBenchmark(threads));
+		return ret;
+	}
+
+	/**
+	 * Format a result as a JSON object.
+	 * @param r The result.
+	 * @return The object.
+	 */
+	private static String toJson(Result r){
+		Benchmark b = r.benchmark;
+		return String.format(Locale.ROOT, "{\"benchmark\": \"%s\", \"params\": {%s}, \"threads\": %d, \"iterations\": %d, "
+				+"\"score\": %.1f, \"scoreError\": %.1f, \"unit\": \"ops/s\", \"nsPerOp\": %.1f, \"bytes\": %d}",
+				b.name, b.param == null? "": "\""+b.param+"\": "+b.value, b.threads, iterations, r.score, r.error,
+				b.threads * 1e9 / r.score, r.bytes);
+	}
+
+	public static void main(String[] args) throws Exception{
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-time") && i + 1 < args.length)
+				time = Double.parseDouble(args[++i]);
+			else if(args[i].equals("-warmup") && i + 1 < args.length)
+				warmups = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-iterations") && i + 1 < args.length)
+				iterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-filter") && i + 1 < args.length)
+				filter = args[++i];
+			else if(args[i].equals("-json") && i + 1 < args.length)
+				json = new File(args[++i]);
+			else{
+				System.out.println("Usage: java bench.Microbenchmarks [-time seconds] [-warmup iterations] [-iterations n]"
+						+" [-filter prefix] [-json file]");
+				return;
+			}
+		}
+		ArrayList<Result> results = new ArrayList<Result>();
+		System.out.println(String.format("%-20s %-18s %16s %12s %12s %10s", "benchmark", "param", "ops/s", "error",
+				"ns/op", "bytes"));
+		for(Benchmark b : benchmarks()){
+			if(!b.name.startsWith(filter)) continue;
+			Result r = measure(b);
+			results.add(r);
+			System.out.println(String.format("%-20s %-18s %16.0f %12.0f %12.1f %10s", b.name,
+					b.param == null? "": b.param+"="+b.value, r.score, r.error, b.threads * 1e9 / r.score,
+					r.bytes < 0? "": String.valueOf(r.bytes)));
+		}
+		if(json != null){
+			PrintWriter out = new PrintWriter(new FileWriter(json));
+			try{
+				out.println("[");
+				for(int i = 0; i < results.size(); i++)
+					out.println("  "+toJson(results.get(i))+(i + 1 < results.size()? ",": ""));
+				out.println("]");
+			}finally{
+				out.close();
+			}
+			System.out.println("Wrote "+json);
+		}
+	}
+}
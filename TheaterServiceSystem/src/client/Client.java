@@ -1,8 +1,10 @@
 package client;
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Random;
 
 import javax.swing.JFrame;
 import javax.swing.JButton;
@@ -115,6 +117,17 @@ public class Client extends JFrame {
 		});
 		btnDelete.setBounds(66, 199, 117, 73);
 		getContentPane().add(btnDelete);
+
+		JButton btnShows = new JButton("Shows");
+		btnShows.setFont(new Font("Lao MN", Font.BOLD | Font.ITALIC, 13));
+		btnShows.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				Shows sh = new Shows(server);
+				sh.setVisible(true);
+			}
+		});
+		btnShows.setBounds(409, 258, 117, 28);
+		getContentPane().add(btnShows);
 		
 		JLabel lblWelcomeToUse = new JLabel("Welcome to use the client reservation system!");
 		lblWelcomeToUse.setForeground(Color.WHITE);
@@ -146,36 +159,44 @@ public class Client extends JFrame {
 		
 	}
 	/**
-	 * Randomly choose a server to connect
+	 * Connect to the best server: every server is probed (see TheaterClient.probe()), and the one with the lowest round
+	 * trip time and load is tried first. Servers which cannot be reached are left out, and all are probed again if none
+	 * can be connected to.
 	 */
 	public void connectToServer() {
-		for(ProcessForClient p : clusterInfo.values())
-			p.live = true;
-		int dieNum = 0;
 		while(true){
-			try {
-				//Initialize the socket
-				//Choose a random live server to connect.
-				do{
-					int chosenServer = new Random().nextInt(clusterInfo.size());
-					server = clusterInfo.get(chosenServer);
-				}while(!server.live);
-				System.out.println("Try to connect to " + server);
-				server.connect();
-				System.out.println("Connect success!!!!!!");
-				server.live = true;
-				break;
-			} catch(IOException e) {
-				//The connection failed, make the live tag false and reconnect
-				System.out.println("Connect Failed!  ");
-				server.live = false;
-				dieNum++;
+			final HashMap<ProcessForClient, Double> scores = new HashMap<ProcessForClient, Double>();
+			ArrayList<ProcessForClient> ranked = new ArrayList<ProcessForClient>();
+			for(ProcessForClient p : clusterInfo.values()){
+				double score = TheaterClient.probe(new InetSocketAddress(p.ip, p.port));
+				p.live = score != Double.POSITIVE_INFINITY;
+				if(p.live){
+					scores.put(p, score);
+					ranked.add(p);
+				}
 			}
-			if(dieNum == clusterInfo.size()){
-				dieNum = 0;
-				for(ProcessForClient p : clusterInfo.values())
-					p.live = true;
+			Collections.sort(ranked, new Comparator<ProcessForClient>(){
+				@Override
+				public int compare(ProcessForClient a, ProcessForClient b){
+					return Double.compare(scores.get(a), scores.get(b));
+				}
+			});
+			for(ProcessForClient p : ranked){
+				try {
+					System.out.println("Try to connect to " + p);
+					p.connect();
+					server = p;
+					System.out.println("Connect success!!!!!!");
+					return;
+				} catch(IOException e) {
+					//The connection failed, try the next best server
+					System.out.println("Connect Failed!  ");
+					p.live = false;
+				}
 			}
+			try {
+				Thread.sleep(500);	//No server can be reached, wait a little before probing again.
+			} catch (InterruptedException e) {}
 		}
 	}
 	/**
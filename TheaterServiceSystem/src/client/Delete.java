@@ -25,6 +25,7 @@ public class Delete extends JDialog {
 
 	private final JPanel contentPanel = new JPanel();
 	private JTextField nameField;
+	private JTextField sectionField;
    
 
 
@@ -49,6 +50,17 @@ public class Delete extends JDialog {
 			lblYourName.setBounds(112, 102, 84, 16);
 			contentPanel.add(lblYourName);
 		}
+		{
+			sectionField = new JTextField();
+			sectionField.setBounds(216, 148, 134, 28);
+			contentPanel.add(sectionField);
+			sectionField.setColumns(10);
+		}
+		{
+			JLabel lblSection = new JLabel("Section (optional):");
+			lblSection.setBounds(70, 154, 134, 16);
+			contentPanel.add(lblSection);
+		}
 		{
 			JPanel buttonPane = new JPanel();
 			buttonPane.setLayout(new FlowLayout(FlowLayout.RIGHT));
@@ -62,7 +74,8 @@ public class Delete extends JDialog {
 						if(data.equals("")) {
 							JOptionPane.showMessageDialog(null,"There is null field!!");
 						} else {							
-							Message msg = new Message(MessageType.DELETE_SEAT, data, null);
+							String section = sectionField.getText().equals("")? null: sectionField.getText();	//The default section if empty
+							Message msg = new Message(MessageType.DELETE_SEAT, data, null, section);
 							try {
 								server.sendMessage(msg);
 							} catch (IOException e1) {
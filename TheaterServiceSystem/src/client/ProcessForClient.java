@@ -4,6 +4,7 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 
 import message.Message;
+import message.MessageCodec;
 
 
 /**
@@ -14,8 +15,8 @@ public class ProcessForClient {
 	public final int pid;					//The pid of a server.
 	public final String ip;					//The ip of a server
 	public final int port;					//The port of a server.
-	private ObjectOutputStream send;		//The stream to send data to the server
-	private ObjectInputStream receive;		//The stream to receive data from server
+	private DataOutputStream send;			//The stream to send data to the server
+	private DataInputStream receive;		//The stream to receive data from server
 	public boolean live;					//If the server process live or dead.
 	private Object lock = new Object();
 	
@@ -53,8 +54,8 @@ public class ProcessForClient {
 		synchronized(lock){
 			Socket socket = new Socket(ip, port);
 		  //  socket.setSoTimeout(10 * 1000);
-			send = new ObjectOutputStream(socket.getOutputStream());
-			receive = new ObjectInputStream(socket.getInputStream());
+			send = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			receive = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 		}
 	}
 	
@@ -67,7 +68,7 @@ public class ProcessForClient {
 		if(send == null)
 			throw new IOException("Process is not connected!");
 		synchronized(lock){
-			send.writeObject(msg);
+			MessageCodec.write(send, msg);
 		}
 	}
 	
@@ -80,13 +81,7 @@ public class ProcessForClient {
 	public Message receiveMessage() throws IOException{
 		if(receive == null)
 			throw new IOException("Process is not connected! Wait for re-connection!");
-		Message ret = null;
-		
-		try {
-			ret = (Message)receive.readObject();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}
+		Message ret = MessageCodec.read(receive);
 		
 //		
 //		synchronized(lock){
@@ -27,6 +27,7 @@ public class Reserve extends JDialog {
 	private final JPanel contentPanel = new JPanel();
 	private JTextField nameField;
 	private JTextField countField;
+	private JTextField sectionField;
 	/**
 	 * Create the dialog.
 	 */
@@ -55,6 +56,15 @@ public class Reserve extends JDialog {
 		JLabel lblReservationCount = new JLabel("Reservation Count:");
 		lblReservationCount.setBounds(54, 143, 134, 16);
 		contentPanel.add(lblReservationCount);
+		
+		sectionField = new JTextField();
+		sectionField.setBounds(200, 180, 134, 28);
+		contentPanel.add(sectionField);
+		sectionField.setColumns(10);
+		
+		JLabel lblSection = new JLabel("Section (optional):");
+		lblSection.setBounds(54, 186, 134, 16);
+		contentPanel.add(lblSection);
 		{
 			JPanel buttonPane = new JPanel();
 			buttonPane.setLayout(new FlowLayout(FlowLayout.RIGHT));
@@ -69,7 +79,8 @@ public class Reserve extends JDialog {
 							JOptionPane.showMessageDialog(null,"There is empty field!!");
 						}else {
 							String data = nameField.getText() + " " + countField.getText();
-							Message msg = new Message(MessageType.RESERVE_SEAT, data, null);
+							String section = sectionField.getText().equals("")? null: sectionField.getText();	//The default section if empty
+							Message msg = new Message(MessageType.RESERVE_SEAT, data, null, section);
 							try {
 								server.sendMessage(msg);
 							} catch (IOException e1) {
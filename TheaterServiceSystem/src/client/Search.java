@@ -26,6 +26,7 @@ public class Search extends JDialog {
 
 	private final JPanel contentPanel = new JPanel();
 	private JTextField nameField;
+	private JTextField sectionField;
   
 
 	/**
@@ -49,6 +50,17 @@ public class Search extends JDialog {
 			lblYourName.setBounds(94, 114, 103, 16);
 			contentPanel.add(lblYourName);
 		}
+		{
+			sectionField = new JTextField();
+			sectionField.setBounds(209, 160, 134, 28);
+			contentPanel.add(sectionField);
+			sectionField.setColumns(10);
+		}
+		{
+			JLabel lblSection = new JLabel("Section (optional):");
+			lblSection.setBounds(63, 166, 134, 16);
+			contentPanel.add(lblSection);
+		}
 		{
 			JPanel buttonPane = new JPanel();
 			buttonPane.setLayout(new FlowLayout(FlowLayout.RIGHT));
@@ -61,7 +73,8 @@ public class Search extends JDialog {
 						if(data.equals("")) {
 							JOptionPane.showMessageDialog(null,"There is null field!!");
 						}else {
-							Message msg = new Message(MessageType.SEARCH_SEAT, data, null);
+							String section = sectionField.getText().equals("")? null: sectionField.getText();	//The default section if empty
+							Message msg = new Message(MessageType.SEARCH_SEAT, data, null, section);
 							try {
 								server.sendMessage(msg);
 							} catch (IOException e1) {
@@ -0,0 +1,126 @@
+package client;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.border.EmptyBorder;
+
+import java.awt.event.ActionListener;
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+
+import javax.swing.JTextField;
+import javax.swing.JLabel;
+
+import message.Message;
+import message.MessageType;
+
+/**
+ * The dialog to create or drop a show. A show is booked like a section, by giving its name in the Section field.
+ *
+ */
+public class Shows extends JDialog {
+
+	private static final long serialVersionUID = 1L;
+	private final JPanel contentPanel = new JPanel();
+	private JTextField showField;
+	private JTextField seatsField;
+
+	/**
+	 * Create the dialog.
+	 */
+	public Shows(final ProcessForClient server) {
+
+		setBounds(100, 100, 450, 300);
+		getContentPane().setLayout(new BorderLayout());
+		contentPanel.setBorder(new EmptyBorder(5, 5, 5, 5));
+		getContentPane().add(contentPanel, BorderLayout.CENTER);
+		contentPanel.setLayout(null);
+		{
+			showField = new JTextField();
+			showField.setBounds(209, 108, 134, 28);
+			contentPanel.add(showField);
+			showField.setColumns(10);
+		}
+		{
+			JLabel lblShow = new JLabel("Show:");
+			lblShow.setBounds(130, 114, 67, 16);
+			contentPanel.add(lblShow);
+		}
+		{
+			seatsField = new JTextField();
+			seatsField.setBounds(209, 160, 134, 28);
+			contentPanel.add(seatsField);
+			seatsField.setColumns(10);
+		}
+		{
+			JLabel lblSeats = new JLabel("Seats (to create):");
+			lblSeats.setBounds(63, 166, 134, 16);
+			contentPanel.add(lblSeats);
+		}
+		{
+			JPanel buttonPane = new JPanel();
+			buttonPane.setLayout(new FlowLayout(FlowLayout.RIGHT));
+			getContentPane().add(buttonPane, BorderLayout.SOUTH);
+			{
+				JButton createButton = new JButton("Create");
+				createButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						String show = showField.getText();
+						if(show.equals("") || seatsField.getText().equals("")) {
+							JOptionPane.showMessageDialog(null,"There is null field!!");
+							return;
+						}
+						try {
+							Message msg = new Message(MessageType.CREATE_SHOW, Integer.parseInt(seatsField.getText()), null, show);
+							server.sendMessage(msg);
+						} catch (NumberFormatException e1) {
+							JOptionPane.showMessageDialog(null,"The number of seats is not a number!!");
+							return;
+						} catch (IOException e1) {
+							e1.printStackTrace();
+						}
+						dispose();
+					}
+				});
+				createButton.setActionCommand("Create");
+				buttonPane.add(createButton);
+				getRootPane().setDefaultButton(createButton);
+			}
+			{
+				JButton dropButton = new JButton("Drop");
+				dropButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						String show = showField.getText();
+						if(show.equals("")) {
+							JOptionPane.showMessageDialog(null,"There is null field!!");
+							return;
+						}
+						try {
+							server.sendMessage(new Message(MessageType.DROP_SHOW, null, null, show));
+						} catch (IOException e1) {
+							e1.printStackTrace();
+						}
+						dispose();
+					}
+				});
+				dropButton.setActionCommand("Drop");
+				buttonPane.add(dropButton);
+			}
+			{
+				JButton cancelButton = new JButton("Cancel");
+				cancelButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						dispose();
+					}
+				});
+				cancelButton.setActionCommand("Cancel");
+				buttonPane.add(cancelButton);
+			}
+		}
+	}
+}
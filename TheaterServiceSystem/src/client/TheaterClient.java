@@ -0,0 +1,650 @@
+package client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import message.Message;
+import message.MessageCodec;
+import message.MessageType;
+
+/**
+ * TheaterClient is a client of the theater service without user interface, for programs. Every request carries an id
+ * which the server echoes in its response, so any number of requests can be outstanding on the connection, and their
+ * responses are matched to them in whatever order they come back. Each operation returns a future completed with the
+ * text of the response.
+ *
+ * The client keeps a connection to every server it can reach, and sends its requests to one of them. Every
+ * PROBE_INTERVAL it sends a PING on each connection, which the server answers at once with the number of client
+ * requests it is handling, and scores the server by the round trip time and that load (see Link.score()). Requests go
+ * to the best server; the client moves to another one only when it scores less than REBALANCE_RATIO of the current one,
+ * so that it does not flap between servers which are about as good. The other connections are kept warm, and servers
+ * which cannot be reached are tried again on every probe.
+ *
+ * If the connection in use fails, or a request is not answered in REQUEST_TIMEOUT, the searches and show drops not
+ * answered yet are sent again to the best other server at once. The other requests (reservations, deletions, group
+ * reservations and show creations) may have been applied by the server left, and would be answered wrongly if sent
+ * again (a reservation sent again is refused as a repeated one, and with -escrow may even be made twice), so they fail
+ * instead. If no server can be reached after trying each of them MAX_ROUNDS times, the outstanding requests fail.
+ *
+ */
+public class TheaterClient implements Closeable {
+
+	static final int REQUEST_TIMEOUT = 10000;	//The time(ms) a request may stay unanswered before the server is left
+	static final int PROBE_INTERVAL = 1000;		//The time(ms) between two probes of the servers
+	private static final int CONNECT_TIMEOUT = 1000;	//The time(ms) to wait for a connection to a server
+	private static final int MAX_ROUNDS = 3;	//The number of times every server is tried before giving up
+	private static final int RETRY_DELAY = 500;	//The time(ms) to wait before trying the servers again
+	private static final double REBALANCE_RATIO = 0.5;	//Move to a server scoring less than this part of the current one
+	private static final double RTT_WEIGHT = 0.25;		//The weight of a new round trip time in the smoothed one
+	private static final EnumSet<MessageType> RESENT = EnumSet.of(MessageType.SEARCH_SEAT,
+			MessageType.DROP_SHOW);	//The requests answered the same if a server applies them twice
+
+	/**
+	 * The future of the response to a request, which also tells the server the request went to.
+	 */
+	public static class Response extends CompletableFuture<String>{
+		private volatile InetSocketAddress server = null;	//The server the request was last sent to, or which answered it
+
+		/**
+		 * Return the server which answered the request, or which it was last sent to if it is not answered. This is not
+		 * server() when the client has moved to another server meanwhile.
+		 * @return The server, null if the request has not been sent.
+		 */
+		public InetSocketAddress server(){
+			return server;
+		}
+	}
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private static class Pending{
+		final Message msg;							//The request
+		final Response future;						//Completed with the response
+		long sent;									//The time(ms) the request was last sent
+		Link link;									//The connection it was last sent on, null if it is not sent
+
+		Pending(Message msg){
+			this.msg = msg;
+			this.future = new Response();
+		}
+	}
+
+	/**
+	 * A server and the connection to it. The fields are guarded by the lock of the client.
+	 */
+	private static class Link{
+		final InetSocketAddress address;
+		Socket socket = null;			//The connection, null if not connected
+		DataOutputStream out = null;	//The stream to send requests, written under its own lock
+		double rtt = -1;				//The smoothed round trip time(ms) of the probes, -1 if none was answered
+		int load = 0;					//The client requests the server was handling at the last probe
+		long probe = 0;					//The id of the probe not answered yet, 0 if there is none
+		long probeSent;					//The time(ns) it was sent
+
+		Link(InetSocketAddress address){
+			this.address = address;
+		}
+
+		/**
+		 * Return the score of the server, the lower the better: the round trip time, multiplied by the requests which may
+		 * be before a new one.
+		 * @return The score, infinite if the server has not answered a probe.
+		 */
+		double score(){
+			return rtt < 0? Double.POSITIVE_INFINITY: score(rtt, load);
+		}
+
+		/**
+		 * Return the score of a server.
+		 * @param rtt The round trip time(ms).
+		 * @param load The client requests the server is handling.
+		 * @return The score.
+		 */
+		static double score(double rtt, int load){
+			return (rtt + 0.1) * (1 + load);
+		}
+	}
+
+	private final List<Link> links = new ArrayList<Link>();	//The servers, in the order of the file
+	private final AtomicLong ids = new AtomicLong();	//The last id given to a request or a probe
+	private final Object lock = new Object();		//Lock of the fields below and of the links
+	private final LinkedHashMap<Long, Pending> pending = new LinkedHashMap<Long, Pending>();	//The requests not answered yet, in the order they were made
+	private final Random random = new Random();
+	private Link current = null;			//The server requests are sent to, null if none is chosen
+	private boolean connecting = false;		//If a thread is connecting to a server because none is connected
+	private boolean closed = false;
+
+	/**
+	 * Create a client of the servers listed in a file, in the format of servers.txt. It connects to the servers at once,
+	 * and sends the first requests to a random one until the servers are probed.
+	 * @param path The path of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public TheaterClient(String path) throws IOException{
+		this(readServers(path));
+	}
+
+	/**
+	 * Create a client of some servers. It connects to the servers at once, and sends the first requests to a random one
+	 * until the servers are probed.
+	 * @param servers The servers.
+	 */
+	public TheaterClient(List<InetSocketAddress> servers){
+		if(servers.isEmpty())
+			throw new IllegalArgumentException("No server");
+		for(InetSocketAddress address : servers)
+			links.add(new Link(address));
+		Thread watchdog = new Thread("client-watchdog"){
+			@Override
+			public void run(){
+				watch();
+			}
+		};
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+
+	/**
+	 * Read the servers of a file in the format of servers.txt: one "ip port" per line.
+	 * @param path The path of the file.
+	 * @return The servers.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static List<InetSocketAddress> readServers(String path) throws IOException{
+		ArrayList<InetSocketAddress> ret = new ArrayList<InetSocketAddress>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] splits = line.trim().split(" ");
+				if(splits.length >= 2)
+					ret.add(new InetSocketAddress(splits[0], Integer.parseInt(splits[1])));
+			}
+		}finally{
+			reader.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Measure a server once on a connection of its own: the round trip time of a PING and the client requests the server
+	 * is handling.
+	 * @param address The server.
+	 * @return The score of the server (see Link.score()), infinite if it cannot be reached or does not answer in
+	 * CONNECT_TIMEOUT.
+	 */
+	public static double probe(InetSocketAddress address){
+		Socket s = new Socket();
+		try{
+			s.connect(address, CONNECT_TIMEOUT);
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(CONNECT_TIMEOUT);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			long start = System.nanoTime();
+			MessageCodec.write(out, new Message(MessageType.PING, null, null, null, 1));
+			Message reply = MessageCodec.read(in);
+			return Link.score((System.nanoTime() - start) / 1e6, Integer.parseInt((String) reply.content));
+		}catch(IOException e){
+			return Double.POSITIVE_INFINITY;
+		}catch(NumberFormatException e){	//Not an answer to PING
+			return Double.POSITIVE_INFINITY;
+		}finally{
+			try {
+				s.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Reserve seats.
+	 * @param name The name the seats are reserved for.
+	 * @param count The number of seats.
+	 * @param section The section or show, null for the default section.
+	 * @return The future of the response.
+	 */
+	public Response reserve(String name, int count, String section){
+		return request(MessageType.RESERVE_SEAT, name + " " + count, section);
+	}
+
+	/**
+	 * Reserve seats for many names at once, in one critical section of the servers. Each name succeeds or fails on its
+	 * own, as with reserve().
+	 * @param counts The names the seats are reserved for, to the number of seats for each, in the order to reserve.
+	 * @param section The section or show, null for the default section.
+	 * @return The future of the response, one line for each name in order.
+	 */
+	public Response reserveGroup(Map<String, Integer> counts, String section){
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, Integer> entry : counts.entrySet()){
+			if(sb.length() > 0) sb.append(',');
+			sb.append(entry.getKey()).append(' ').append(entry.getValue());
+		}
+		return request(MessageType.GROUP_RESERVE, sb.toString(), section);
+	}
+
+	/**
+	 * Search the seats reserved for a name.
+	 * @param name The name.
+	 * @param section The section or show, null for the default section.
+	 * @return The future of the response.
+	 */
+	public Response search(String name, String section){
+		return request(MessageType.SEARCH_SEAT, name, section);
+	}
+
+	/**
+	 * Release the seats reserved for a name.
+	 * @param name The name.
+	 * @param section The section or show, null for the default section.
+	 * @return The future of the response.
+	 */
+	public Response delete(String name, String section){
+		return request(MessageType.DELETE_SEAT, name, section);
+	}
+
+	/**
+	 * Create a show.
+	 * @param show The name of the show.
+	 * @param seats The number of seats.
+	 * @return The future of the response.
+	 */
+	public Response createShow(String show, int seats){
+		return request(MessageType.CREATE_SHOW, seats, show);
+	}
+
+	/**
+	 * Drop a show.
+	 * @param show The name of the show.
+	 * @return The future of the response.
+	 */
+	public Response dropShow(String show){
+		return request(MessageType.DROP_SHOW, null, show);
+	}
+
+	/**
+	 * Send a request.
+	 * @param type The type of request.
+	 * @param content The content.
+	 * @param section The section.
+	 * @return The future of the response.
+	 */
+	private Response request(MessageType type, Serializable content, String section){
+		Pending p = new Pending(new Message(type, content, null, section, ids.incrementAndGet()));
+		synchronized(lock){
+			if(closed){
+				p.future.completeExceptionally(new IOException("Client is closed"));
+				return p.future;
+			}
+			pending.put(p.msg.id, p);
+		}
+		send(Collections.singletonList(p));
+		return p.future;
+	}
+
+	/**
+	 * Send pending requests to the current server, choosing one first, or connecting to one if none is connected. The
+	 * requests are written outside lock, so that a slow server holds up neither the other callers nor the responses. If
+	 * no server can be reached, the requests fail.
+	 * @param ps The requests.
+	 */
+	private void send(List<Pending> ps){
+		Link link = null;
+		Socket socket = null;
+		DataOutputStream out = null;
+		while(link == null){
+			synchronized(lock){
+				if(closed) return;	//The requests have been failed by close().
+				if(current != null || choose()){
+					link = current;
+					socket = link.socket;
+					out = link.out;
+					long now = System.currentTimeMillis();
+					for(Pending p : ps){
+						p.link = link;
+						p.sent = now;
+						p.future.server = link.address;
+					}
+				}
+			}
+			if(link == null && !connect()){
+				synchronized(lock){
+					for(Pending p : ps)
+						pending.remove(p.msg.id);
+				}
+				for(Pending p : ps)
+					p.future.completeExceptionally(new IOException("No server can be reached"));
+				return;
+			}
+		}
+		try {
+			synchronized(out){
+				for(Pending p : ps)
+					MessageCodec.write(out, p.msg);
+			}
+		} catch (IOException e) {
+			failed(link, socket);	//Sends them again with the others of that connection.
+		}
+	}
+
+	/**
+	 * Choose the server to send requests to among the connected ones: the best one, or a random one if none has been
+	 * probed yet. The caller must hold lock.
+	 * @return False if no server is connected.
+	 */
+	private boolean choose(){
+		Link best = null;
+		ArrayList<Link> connected = new ArrayList<Link>();
+		for(Link link : links)
+			if(link.socket != null){
+				connected.add(link);
+				if(best == null || link.score() < best.score())
+					best = link;
+			}
+		if(best == null) return false;
+		if(best.rtt < 0)
+			best = connected.get(random.nextInt(connected.size()));
+		current = best;
+		return true;
+	}
+
+	/**
+	 * Connect to a server when none is connected, trying every server MAX_ROUNDS times, and choose it. One thread connects
+	 * at a time and the others wait for it. The caller must not hold lock, since a connection may take CONNECT_TIMEOUT.
+	 * @return False if no server can be reached.
+	 */
+	private boolean connect(){
+		synchronized(lock){
+			boolean waited = false;
+			while(connecting && !closed){
+				waited = true;
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {}
+			}
+			if(closed) return false;
+			if(current != null || choose()) return true;	//Connected by another thread meanwhile
+			if(waited) return false;	//The other thread could not reach any server either.
+			connecting = true;
+		}
+		boolean connected = false;
+		try{
+			int start = random.nextInt(links.size());
+			for(int attempt = 0; attempt < MAX_ROUNDS * links.size(); attempt++){
+				Link link = links.get((start + attempt) % links.size());
+				synchronized(lock){
+					if(attempt > 0 && attempt % links.size() == 0)
+						try {
+							lock.wait(RETRY_DELAY);	//Every server failed, wait a little before the next round.
+						} catch (InterruptedException e) {}
+					if(closed) break;
+					if(current != null || choose()){	//The watchdog connected one meanwhile.
+						connected = true;
+						break;
+					}
+				}
+				Socket s;
+				try{
+					s = open(link.address);
+				}catch(IOException e){
+					System.out.println("Unable to connect to "+link.address+": "+e.getMessage());
+					continue;
+				}
+				synchronized(lock){
+					try {
+						if(closed || link.socket != null) s.close();
+						else attach(link, s);
+					} catch (IOException e) {
+						continue;
+					}
+					if(closed) break;
+					current = link;
+					connected = true;
+					break;
+				}
+			}
+		}finally{
+			synchronized(lock){
+				connecting = false;
+				lock.notifyAll();
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * Open a connection to a server.
+	 * @param address The server.
+	 * @return The connection.
+	 * @throws IOException If the server cannot be reached.
+	 */
+	private static Socket open(InetSocketAddress address) throws IOException{
+		Socket s = new Socket();
+		try{
+			s.connect(address, CONNECT_TIMEOUT);
+			s.setTcpNoDelay(true);
+		}catch(IOException e){
+			s.close();
+			throw e;
+		}
+		return s;
+	}
+
+	/**
+	 * Use a connection for a server, and start reading its responses. The caller must hold lock.
+	 * @param link The server, which must not be connected.
+	 * @param s The connection.
+	 * @throws IOException If the streams cannot be opened.
+	 */
+	private void attach(final Link link, final Socket s) throws IOException{
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		link.out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		link.socket = s;
+		link.probe = 0;
+		link.rtt = -1;	//Measured again, the server may have been restarted or stopped
+		link.load = 0;
+		Thread reader = new Thread("client-reader"){
+			@Override
+			public void run(){
+				try {
+					while(true){
+						Message msg = MessageCodec.read(in);
+						Pending p;
+						synchronized(lock){
+							if(msg.id == link.probe){
+								probed(link, msg);
+								continue;
+							}
+							p = pending.remove(msg.id);
+							if(p != null)
+								p.future.server = link.address;	//Even if it has just been sent again elsewhere
+						}
+						if(p != null)
+							p.future.complete((String) msg.content);
+					}
+				} catch (IOException e) {}
+				failed(link, s);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Record the answer to a probe. The caller must hold lock.
+	 * @param link The server.
+	 * @param msg The answer, the number of client requests the server is handling.
+	 */
+	private void probed(Link link, Message msg){
+		double sample = (System.nanoTime() - link.probeSent) / 1e6;
+		link.rtt = link.rtt < 0? sample: link.rtt + RTT_WEIGHT * (sample - link.rtt);
+		try{
+			link.load = Integer.parseInt((String) msg.content);
+		}catch(NumberFormatException e){}
+		link.probe = 0;
+	}
+
+	/**
+	 * Close a broken connection, and send the requests not answered on it to the best other server, except those which
+	 * must not be sent twice (see RESENT), which fail. Nothing is done if the connection has been closed already.
+	 * @param link The server.
+	 * @param s The broken connection.
+	 */
+	private void failed(Link link, Socket s){
+		ArrayList<Pending> moved = new ArrayList<Pending>();	//The requests to send again
+		ArrayList<Pending> unsure = new ArrayList<Pending>();	//The requests which may have been applied
+		synchronized(lock){
+			if(s == null || link.socket != s) return;
+			disconnect(link);
+			if(closed) return;
+			for(Pending p : pending.values())
+				if(p.link == link)
+					(RESENT.contains(p.msg.type)? moved: unsure).add(p);
+			for(Pending p : unsure)
+				pending.remove(p.msg.id);
+			for(Pending p : moved)
+				p.link = null;	//Until send() chooses another server
+			if(link == current)
+				current = null;
+		}
+		for(Pending p : unsure)
+			p.future.completeExceptionally(new IOException("Connection to "+link.address+" lost, the request may have been applied"));
+		if(!moved.isEmpty()){
+			System.out.println("Connection to "+link.address+" lost, "+moved.size()+" requests to send again");
+			send(moved);
+		}
+	}
+
+	/**
+	 * Close the connection to a server. The caller must hold lock.
+	 * @param link The server.
+	 */
+	private static void disconnect(Link link){
+		if(link.socket != null)
+			try {
+				link.socket.close();
+			} catch (IOException e) {}
+		link.socket = null;
+		link.out = null;
+		link.probe = 0;
+	}
+
+	/**
+	 * Every PROBE_INTERVAL: leave the server if the oldest request has not been answered in REQUEST_TIMEOUT, connect to
+	 * the servers which are not connected, probe the others, and move to a server which is much better than the current
+	 * one. Run by the watchdog thread.
+	 */
+	private void watch(){
+		while(true){
+			//Connect to the servers which are not connected, outside the lock since it may take CONNECT_TIMEOUT.
+			ArrayList<Link> down = new ArrayList<Link>();
+			synchronized(lock){
+				if(closed) return;
+				for(Link link : links)
+					if(link.socket == null)
+						down.add(link);
+			}
+			for(Link link : down){
+				Socket s;
+				try {
+					s = open(link.address);
+				} catch (IOException e) {
+					continue;
+				}
+				synchronized(lock){
+					try {
+						if(closed || link.socket != null) s.close();
+						else attach(link, s);
+					} catch (IOException e) {}
+				}
+			}
+			Link timedOut = null;
+			Socket timedOutSocket = null;
+			ArrayList<Link> probed = new ArrayList<Link>();	//Probed outside the lock, on these sockets and streams
+			ArrayList<Socket> sockets = new ArrayList<Socket>();
+			ArrayList<DataOutputStream> streams = new ArrayList<DataOutputStream>();
+			ArrayList<Message> probes = new ArrayList<Message>();
+			synchronized(lock){
+				if(closed) return;
+				if(!pending.isEmpty()){
+					Pending oldest = pending.values().iterator().next();
+					if(oldest.link != null && System.currentTimeMillis() - oldest.sent >= REQUEST_TIMEOUT){
+						System.out.println("No response from "+oldest.link.address+" in "+REQUEST_TIMEOUT+"ms");
+						timedOut = oldest.link;
+						timedOutSocket = timedOut.socket;
+					}
+				}
+				long now = System.nanoTime();
+				for(Link link : links){
+					if(link.socket == null || link == timedOut) continue;
+					if(link.probe != 0)	//Not answered since the last probe, it is at least that slow.
+						link.rtt = Math.max(link.rtt, (now - link.probeSent) / 1e6);
+					link.probe = ids.incrementAndGet();
+					link.probeSent = now;
+					probed.add(link);
+					sockets.add(link.socket);
+					streams.add(link.out);
+					probes.add(new Message(MessageType.PING, null, null, null, link.probe));
+				}
+				Link best = current;
+				for(Link link : links)
+					if(link.socket != null && link != timedOut && (best == null || link.score() < best.score()))
+						best = link;
+				if(current != null && best != current && best.score() < REBALANCE_RATIO * current.score())
+					current = best;	//New requests go there, the others are still answered on their connection.
+			}
+			if(timedOut != null)
+				failed(timedOut, timedOutSocket);
+			for(int i = 0; i < probed.size(); i++){
+				DataOutputStream out = streams.get(i);
+				try {
+					synchronized(out){
+						MessageCodec.write(out, probes.get(i));
+					}
+				} catch (IOException e) {
+					failed(probed.get(i), sockets.get(i));
+				}
+			}
+			synchronized(lock){
+				if(closed) return;
+				try {
+					lock.wait(PROBE_INTERVAL);
+				} catch (InterruptedException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Return the server requests are sent to.
+	 * @return The server, null if none is chosen.
+	 */
+	public InetSocketAddress server(){
+		synchronized(lock){
+			return current == null? null: current.address;
+		}
+	}
+
+	/**
+	 * Close the connections. The requests not answered yet fail.
+	 */
+	@Override
+	public void close(){
+		ArrayList<Pending> failed;
+		synchronized(lock){
+			closed = true;
+			lock.notifyAll();
+			for(Link link : links)
+				disconnect(link);
+			current = null;
+			failed = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		for(Pending p : failed)
+			p.future.completeExceptionally(new IOException("Client is closed"));
+	}
+}
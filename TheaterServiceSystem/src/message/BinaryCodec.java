@@ -0,0 +1,285 @@
+package message;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import server.Clock;
+
+/**
+ * BinaryCodec writes the body of a frame without Java serialization, so a message costs a few bytes instead of the
+ * class descriptors of Message, Clock and MessageType. A body is:
+ *
+ *   MAGIC, type (ordinal + 1, 0 for none), flags (CLOCK, SECTION, ID),
+ *   [timestamp, pid] (varints) if CLOCK, [section] (string) if SECTION, [id] (varint) if ID, payload.
+ *
+ * A payload is a tag followed by its value. Contents other than the common small ones (null, String, Integer, Long,
+ * Clock, long[], int[]) are kept as a serialized object, so any message can be written. MAGIC is never the first byte
+ * of a serialized stream, so a receiver can tell both formats apart (see MessageCodec.decode).
+ *
+ */
+public class BinaryCodec {
+
+	static final byte MAGIC = 0x7E;	//The first byte of a binary body
+
+	private static final int CLOCK = 1;		//The message has a clock
+	private static final int SECTION = 2;	//The message has a section
+	private static final int ID = 4;		//The message has a request id
+
+	private static final int NULL = 0;			//Payload tags
+	private static final int STRING = 1;
+	private static final int INT = 2;
+	private static final int LONG = 3;
+	private static final int CLOCK_VALUE = 4;
+	private static final int LONG_ARRAY = 5;
+	private static final int INT_ARRAY = 6;
+	private static final int OBJECT = 7;
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	/**
+	 * A growable byte array to write a body into.
+	 */
+	static class Output{
+		byte[] buf;
+		int size;
+
+		Output(int capacity){
+			buf = new byte[capacity];
+		}
+
+		private void ensure(int n){
+			if(size + n > buf.length){
+				byte[] bigger = new byte[Math.max(buf.length * 2, size + n)];
+				System.arraycopy(buf, 0, bigger, 0, size);
+				buf = bigger;
+			}
+		}
+
+		void write(int b){
+			ensure(1);
+			buf[size++] = (byte) b;
+		}
+
+		void write(byte[] b){
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, size, b.length);
+			size += b.length;
+		}
+
+		/**
+		 * Write an unsigned varint, 7 bits per byte, the lowest first.
+		 */
+		void writeVarLong(long v){
+			ensure(10);
+			while((v & ~0x7FL) != 0){
+				buf[size++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[size++] = (byte) v;
+		}
+
+		/**
+		 * Write a signed varint, zigzag encoded so that small negative numbers stay short.
+		 */
+		void writeZigZag(long v){
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+
+		void writeString(String s){
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(b.length);
+			write(b);
+		}
+	}
+
+	/**
+	 * A body being read.
+	 */
+	private static class Input{
+		final byte[] buf;
+		int pos;
+		final int end;
+
+		Input(byte[] buf, int offset, int length){
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		int read() throws IOException{
+			if(pos >= end) throw new EOFException("Truncated message");
+			return buf[pos++] & 0xFF;
+		}
+
+		long readVarLong() throws IOException{
+			long v = 0;
+			for(int shift = 0; shift < 64; shift += 7){
+				int b = read();
+				v |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0) return v;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		long readZigZag() throws IOException{
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		int readLength() throws IOException{
+			long n = readVarLong();
+			if(n < 0 || n > end - pos) throw new EOFException("Truncated message");
+			return (int) n;
+		}
+
+		String readString() throws IOException{
+			int n = readLength();
+			String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+	}
+
+	/**
+	 * Write the body of a message.
+	 * @param msg The message.
+	 * @param out The array to write into.
+	 * @throws IOException If the content cannot be serialized.
+	 */
+	static void write(Message msg, Output out) throws IOException{
+		out.write(MAGIC);
+		out.write(msg.type == null? 0: msg.type.ordinal() + 1);
+		out.write((msg.clk == null? 0: CLOCK) | (msg.section == null? 0: SECTION) | (msg.id == 0? 0: ID));
+		if(msg.clk != null){
+			out.writeZigZag(msg.clk.timestamp);
+			out.writeZigZag(msg.clk.pid);
+		}
+		if(msg.section != null)
+			out.writeString(msg.section);
+		if(msg.id != 0)
+			out.writeZigZag(msg.id);
+		writePayload(msg.content, out);
+	}
+
+	/**
+	 * Write the content of a message with its tag.
+	 */
+	private static void writePayload(Serializable content, Output out) throws IOException{
+		if(content == null)
+			out.write(NULL);
+		else if(content instanceof String){
+			out.write(STRING);
+			out.writeString((String) content);
+		}
+		else if(content instanceof Integer){
+			out.write(INT);
+			out.writeZigZag((Integer) content);
+		}
+		else if(content instanceof Long){
+			out.write(LONG);
+			out.writeZigZag((Long) content);
+		}
+		else if(content instanceof Clock){
+			Clock c = (Clock) content;
+			out.write(CLOCK_VALUE);
+			out.writeZigZag(c.timestamp);
+			out.writeZigZag(c.pid);
+		}
+		else if(content instanceof long[]){
+			long[] a = (long[]) content;
+			out.write(LONG_ARRAY);
+			out.writeVarLong(a.length);
+			for(long v : a)
+				out.writeZigZag(v);
+		}
+		else if(content instanceof int[]){
+			int[] a = (int[]) content;
+			out.write(INT_ARRAY);
+			out.writeVarLong(a.length);
+			for(int v : a)
+				out.writeZigZag(v);
+		}
+		else{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(content);
+			oos.close();
+			out.write(OBJECT);
+			out.writeVarLong(bytes.size());
+			out.write(bytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Read the body of a message.
+	 * @param body The array holding the body.
+	 * @param offset The offset of the body in the array.
+	 * @param length The length of the body.
+	 * @return The message.
+	 * @throws IOException If the body is not a binary message.
+	 */
+	static Message read(byte[] body, int offset, int length) throws IOException{
+		Input in = new Input(body, offset, length);
+		if(in.read() != MAGIC)
+			throw new IOException("Not a binary message");
+		int type = in.read();
+		if(type > TYPES.length)
+			throw new IOException("Unknown message type "+type);
+		int flags = in.read();
+		Clock clk = null;
+		if((flags & CLOCK) != 0){
+			long timestamp = in.readZigZag();
+			clk = new Clock(timestamp, (int) in.readZigZag());
+		}
+		String section = (flags & SECTION) != 0? in.readString(): null;
+		long id = (flags & ID) != 0? in.readZigZag(): 0;
+		Serializable content = readPayload(in);
+		return new Message(type == 0? null: TYPES[type - 1], content, clk, section, id);
+	}
+
+	/**
+	 * Read the content of a message with its tag.
+	 */
+	private static Serializable readPayload(Input in) throws IOException{
+		int tag = in.read();
+		switch(tag){
+		case NULL:
+			return null;
+		case STRING:
+			return in.readString();
+		case INT:
+			return (int) in.readZigZag();
+		case LONG:
+			return in.readZigZag();
+		case CLOCK_VALUE:
+			long timestamp = in.readZigZag();
+			return new Clock(timestamp, (int) in.readZigZag());
+		case LONG_ARRAY:{
+			long[] a = new long[in.readLength()];	//Each element takes at least a byte.
+			for(int i = 0; i < a.length; i++)
+				a[i] = in.readZigZag();
+			return a;
+		}
+		case INT_ARRAY:{
+			int[] a = new int[in.readLength()];
+			for(int i = 0; i < a.length; i++)
+				a[i] = (int) in.readZigZag();
+			return a;
+		}
+		case OBJECT:{
+			int n = in.readLength();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(in.buf, in.pos, n));
+			in.pos += n;
+			try {
+				return (Serializable) ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			} catch (ClassCastException e) {
+				throw new IOException(e);
+			}
+		}
+		default:
+			throw new IOException("Unknown payload tag "+tag);
+		}
+	}
+}
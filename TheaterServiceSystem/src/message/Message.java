@@ -17,6 +17,9 @@ public class Message implements Serializable, Comparable<Message> {
 	public final MessageType type; 			//The type of this message. Different types are defined above.
 	public final Clock clk;					//The timestamp of the sent process. If message is sent from client, this field should be null.
 	public final Serializable content;		//The content of this message.
+	public final String section;			//The section of the theater this message is about, null for the default section.
+	public final long id;					//The id of a client request, echoed in the response to it. 0 if the request has none.
+	public transient long received;			//The time(ns) a server received this client request, 0 if unknown. Not sent.
 	
 	
 	/**
@@ -26,9 +29,34 @@ public class Message implements Serializable, Comparable<Message> {
 	 * @param pid	The sender's pid.
 	 */
 	public Message(MessageType type, Serializable content, Clock clk){
+		this(type, content, clk, null);
+	}
+	
+	/**
+	 * Create a new message about a section of the theater.
+	 * @param type The type of message.
+	 * @param content The content.
+	 * @param clk The timestamp of the sender.
+	 * @param section The name of the section, null for the default section.
+	 */
+	public Message(MessageType type, Serializable content, Clock clk, String section){
+		this(type, content, clk, section, 0);
+	}
+	
+	/**
+	 * Create a new client request, or a response to one, with an id.
+	 * @param type The type of message.
+	 * @param content The content.
+	 * @param clk The timestamp of the sender.
+	 * @param section The name of the section, null for the default section.
+	 * @param id The id of the request.
+	 */
+	public Message(MessageType type, Serializable content, Clock clk, String section, long id){
 		this.type = type;
 		this.content = content;
 		this.clk = clk;
+		this.section = section;
+		this.id = id;
 	}
 
 	@Override
@@ -41,6 +69,6 @@ public class Message implements Serializable, Comparable<Message> {
 	
 	@Override
 	public String toString(){
-		return "[type="+type+", clk="+clk+", content="+content+"]";
+		return "[type="+type+", clk="+clk+", content="+content+(section == null? "": ", section="+section)+(id == 0? "": ", id="+id)+"]";
 	}
 }
@@ -0,0 +1,145 @@
+package message;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * MessageCodec turns a message into a frame and back. A frame is the length of its body (4 bytes) followed by the body,
+ * which is the message encoded on its own, so a frame can be decoded without the frames before it and a receiver
+ * can tell where a message ends without blocking on it. The body is written in the format chosen at startup, either
+ * the compact BinaryCodec or Java serialization, and read in whichever format it was written in.
+ *
+ */
+public class MessageCodec {
+
+	/**
+	 * The format of the bodies written.
+	 */
+	public enum Format{
+		BINARY,	//BinaryCodec
+		JAVA	//Java serialization
+	}
+
+	public static final int MAX_FRAME = 64 << 20;	//The largest body accepted, a larger length means a broken stream.
+	private static volatile Format format = Format.BINARY;	//The format of the bodies written
+
+	/**
+	 * Choose the format of the bodies written from now on. Bodies received are decoded in any format.
+	 * @param f The format.
+	 */
+	public static void setFormat(Format f){
+		format = f;
+	}
+
+	/**
+	 * Return the format of the bodies written.
+	 * @return The format.
+	 */
+	public static Format getFormat(){
+		return format;
+	}
+
+	/**
+	 * Encode a message into a frame.
+	 * @param msg The message.
+	 * @return The frame, including its length.
+	 * @throws IOException If the message cannot be serialized.
+	 */
+	public static byte[] encode(Message msg) throws IOException{
+		return encode(msg, format);
+	}
+
+	/**
+	 * Encode a message into a frame in a format.
+	 * @param msg The message.
+	 * @param f The format of the body.
+	 * @return The frame, including its length.
+	 * @throws IOException If the message cannot be serialized.
+	 */
+	public static byte[] encode(Message msg, Format f) throws IOException{
+		if(f == Format.BINARY){
+			BinaryCodec.Output out = new BinaryCodec.Output(64);
+			out.size = 4;	//Room for the length
+			BinaryCodec.write(msg, out);
+			byte[] frame = out.size == out.buf.length? out.buf: Arrays.copyOf(out.buf, out.size);
+			setLength(frame);
+			return frame;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		bytes.write(new byte[4]);	//Room for the length
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(msg);
+		out.close();
+		byte[] frame = bytes.toByteArray();
+		setLength(frame);
+		return frame;
+	}
+
+	/**
+	 * Write the length of the body at the head of a frame.
+	 * @param frame The frame.
+	 */
+	private static void setLength(byte[] frame){
+		int len = frame.length - 4;
+		frame[0] = (byte) (len >>> 24);
+		frame[1] = (byte) (len >>> 16);
+		frame[2] = (byte) (len >>> 8);
+		frame[3] = (byte) len;
+	}
+
+	/**
+	 * Decode the body of a frame, in the format it was written in.
+	 * @param body The array holding the body.
+	 * @param offset The offset of the body in the array.
+	 * @param length The length of the body.
+	 * @return The message.
+	 * @throws IOException If the body is not a message.
+	 */
+	public static Message decode(byte[] body, int offset, int length) throws IOException{
+		if(length > 0 && body[offset] == BinaryCodec.MAGIC)	//A serialized stream starts with 0xACED.
+			return BinaryCodec.read(body, offset, length);
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length));
+		try {
+			return (Message) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} catch (ClassCastException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Check the length of a frame body.
+	 * @param length The length.
+	 * @throws IOException If the length is invalid.
+	 */
+	public static void checkLength(int length) throws IOException{
+		if(length < 0 || length > MAX_FRAME)
+			throw new IOException("Invalid frame length "+length);
+	}
+
+	/**
+	 * Write a message as a frame to a stream.
+	 * @param out The stream.
+	 * @param msg The message.
+	 * @throws IOException If there is an error when writing.
+	 */
+	public static void write(OutputStream out, Message msg) throws IOException{
+		out.write(encode(msg));
+		out.flush();
+	}
+
+	/**
+	 * Read a frame from a stream. This method blocks until the whole frame is received.
+	 * @param in The stream.
+	 * @return The message.
+	 * @throws IOException If there is an error when reading, or the stream is closed.
+	 */
+	public static Message read(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		checkLength(length);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decode(body, 0, length);
+	}
+}
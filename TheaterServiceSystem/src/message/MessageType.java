@@ -5,7 +5,7 @@ package message;
  *
  */
 public enum MessageType {
-	CLOCK_MESSAGE,			//The message used to update clock between processes.
+	CLOCK_MESSAGE,			//The message used to update clock between processes, sent as a heartbeat on idle links.
 	CS_REQUEST_READ,		//The message used to request a critical section for reading.
 	CS_REQUEST_WRITE ,		//The message used to request a critical section for writing.
 	ACKNOWLEDGE_READ ,		//The message used to respond to a cs request read.
@@ -19,5 +19,30 @@ public enum MessageType {
 	SERVER_SYNC_DATA,		//The message used for server to synchronize seate and waiting queue information.
 	SERVER_SYNC_DATA_RESPONSE, //The message used for server to respond to sync_data_response
 	SERVER_SYNC_RESPONSE,	//The message used for server to respond to a SERVER_SYNC
-	SERVER_SYNC_COMPLETE	//The message used for server to comfirm that sychronization is completed
+	SERVER_SYNC_COMPLETE,	//The message used for server to comfirm that sychronization is completed
+	SERVER_SYNC_SNAPSHOT_REQUEST,	//The message used for a joining server to request a copy of a section before SERVER_SYNC_DATA
+	SERVER_SYNC_SNAPSHOT_CHUNK,	//The message used for server to send a part of that copy
+	SERVER_SNAPSHOT_REQUEST,	//The message used for server to request a full copy of the theater service after missing some updates
+	SERVER_SNAPSHOT,		//The message used for server to respond to a SERVER_SNAPSHOT_REQUEST
+	ESCROW_RESERVE,			//The message used for server to tell others the seats it reserved from its escrow quota
+	ESCROW_BORROW,			//The message used for server to borrow seats from the escrow quota of another server
+	ESCROW_GRANT,			//The message used for server to respond to an ESCROW_BORROW with the seats given
+	ESCROW_QUOTA_REQUEST,	//The message used for server to ask another server which seats are in its escrow quota
+	ESCROW_QUOTA,			//The message used for server to respond to an ESCROW_QUOTA_REQUEST
+	STATE_UPDATE,			//The message used for server to ship its writes when the mutual exclusion protocol does not broadcast releases
+	TOKEN_REQUEST,			//The message used for server to request the token (token based mutual exclusion)
+	TOKEN,					//The message used for server to pass the token
+	TOKEN_QUERY,			//The message used for server to ask others about the token after a server died
+	TOKEN_STATUS,			//The message used for server to respond to a TOKEN_QUERY
+	QUORUM_REQUEST,			//The message used for server to request the vote of a quorum member (quorum based mutual exclusion)
+	QUORUM_LOCKED,			//The message used for server to vote for a request
+	QUORUM_FAILED,			//The message used for server to tell a requester that a request before it has the vote
+	QUORUM_INQUIRE,			//The message used for server to ask the requester it voted for to give the vote back
+	QUORUM_YIELD,			//The message used for server to give a vote back after an INQUIRE
+	QUORUM_RELEASE,			//The message used for server to release the votes of its quorum
+	CREATE_SHOW,			//The message used for a client to create a show, and for server to announce it
+	DROP_SHOW,				//The message used for a client to drop a show, and for server to announce it
+	ACKNOWLEDGE_SHOW,		//The message used for server to respond to a CREATE_SHOW or DROP_SHOW announced
+	PING,					//The message used for a client to measure the round trip time and the load of a server
+	GROUP_RESERVE			//The message used for a client to request the server to reserve seats for many names at once
 }
\ No newline at end of file
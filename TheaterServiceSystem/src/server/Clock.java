@@ -33,6 +33,18 @@ public class Clock implements Comparable<Clock>, Serializable{
 		else return pid - c.pid;
 	}
 	
+	@Override
+	public boolean equals(Object o){
+		if(!(o instanceof Clock)) return false;
+		Clock c = (Clock) o;
+		return timestamp == c.timestamp && pid == c.pid;
+	}
+	
+	@Override
+	public int hashCode(){
+		return (int) (timestamp ^ (timestamp >>> 32)) * 31 + pid;
+	}
+	
 	@Override
 	public String toString(){
 		return "(" + timestamp + ", " + pid + ")";
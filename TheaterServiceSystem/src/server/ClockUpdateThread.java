@@ -1,33 +0,0 @@
-package server;
-
-import message.*;
-
-/**
- * ClockUpdateThread is a thread witch peiodically sends a timestamped message to all other processes.
- *
- */
-public class ClockUpdateThread extends Thread {
-
-	private final int period;		//The period(ms) in which messages are sent.
-	
-	/**
-	 * Create a new ClockUpdateThread with a certain sending period.
-	 * @param period The period(ms) in which a message is sent to all other processes.
-	 */
-	public ClockUpdateThread(int period){
-		this.period = period;
-	}
-	
-	@Override
-	public void run(){
-		try {
-			while(true){
-				Server.broadCastMessage(MessageType.CLOCK_MESSAGE, null);		
-				Thread.sleep(period);
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-	}
-	
-}
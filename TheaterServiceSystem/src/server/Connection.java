@@ -0,0 +1,150 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+
+import message.*;
+
+/**
+ * Connection is a link to a client or another server, over which messages are exchanged as frames (see MessageCodec).
+ * The messages received are handled one by one in the order they arrive, and every connection has a process associated,
+ * which is a temporary process with pid -1 until the remote side is known to be a server.
+ *
+ */
+public abstract class Connection {
+
+	Process process; //The process associated
+	final private LinkedList<MessageFuture> waiters = new LinkedList<MessageFuture>();	//Messages expected from this connection by filter
+	final private HashMap<MessageKey, LinkedList<MessageFuture>> keyed = new HashMap<MessageKey, LinkedList<MessageFuture>>();	//Messages expected by key, guarded by waiters
+	private boolean closed = false;	//If onClosed() has been called, guarded by waiters.
+
+	/**
+	 * Start receiving messages.
+	 */
+	public abstract void start();
+
+	/**
+	 * Send a message. This method may be called by different threads simultaneously.
+	 * @param msg The message.
+	 * @throws IOException If there is an error when transferring data.
+	 */
+	public abstract void sendMessage(Message msg) throws IOException;
+
+	/**
+	 * Close the connection. onClosed() is called once the messages received before have been handled.
+	 */
+	public abstract void close();
+
+	/**
+	 * Return an id of this connection, for logging.
+	 * @return The id.
+	 */
+	public abstract long id();
+
+	/**
+	 * Handle a message received, then complete the futures expecting it. The futures expecting it by key are found with
+	 * one lookup; only those expecting a message by filter are tried one by one. A message from a server is also a
+	 * heartbeat for the FailureDetector.
+	 * @param msg The message.
+	 * @return False if the associated process is dead, so that the connection should be closed.
+	 * @throws IOException If there is an error when transferring data.
+	 */
+	protected boolean onMessage(Message msg) throws IOException{
+		synchronized(process){
+			if(!process.live) return false;
+		}
+		process.messagesReceived.increment();
+		if(process.pid >= 0)
+			FailureDetector.heartbeat(process);
+		Server.onReceivingMessage(msg, process);	//Throw the new message to server for response
+		synchronized(waiters){
+			if(!keyed.isEmpty()){
+				LinkedList<MessageFuture> l = keyed.remove(MessageKey.of(msg));
+				if(l != null)
+					for(MessageFuture f : l)
+						f.offer(msg);
+			}
+			Iterator<MessageFuture> it = waiters.iterator();
+			while(it.hasNext())
+				if(it.next().offer(msg))
+					it.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * Called once when no more message will be received. The futures still expecting a message fail, and if the process
+	 * associated is a server, it is dead.
+	 */
+	protected void onClosed(){
+		ArrayList<MessageFuture> failed;
+		synchronized(waiters){
+			if(closed) return;
+			closed = true;
+			failed = new ArrayList<MessageFuture>(waiters);
+			waiters.clear();
+			for(LinkedList<MessageFuture> l : keyed.values())
+				failed.addAll(l);
+			keyed.clear();
+		}
+		for(MessageFuture f : failed)
+			f.fail(new IOException("Connection closed"));
+		System.out.println("Connection "+id()+" stops!");
+		if(process.pid >= 0){
+			Server.onProcessDied(process);
+		}
+	}
+
+	/**
+	 * Expect a message from this connection. The future must be registered before the request is sent, so that the reply
+	 * cannot be missed.
+	 * @param filter The filter of the message expected.
+	 * @return The future of the message.
+	 */
+	MessageFuture expect(MessageFilter filter){
+		MessageFuture f = new MessageFuture(this, filter);
+		synchronized(waiters){
+			if(!closed){
+				waiters.add(f);
+				return f;
+			}
+		}
+		f.fail(new IOException("Connection closed"));
+		return f;
+	}
+	
+	/**
+	 * Expect the message with a key from this connection. The future must be registered before the request is sent.
+	 * @param key The key of the message expected.
+	 * @return The future of the message.
+	 */
+	MessageFuture expect(MessageKey key){
+		MessageFuture f = new MessageFuture(this, key);
+		synchronized(waiters){
+			if(!closed){
+				LinkedList<MessageFuture> l = keyed.get(key);
+				if(l == null) keyed.put(key, l = new LinkedList<MessageFuture>());
+				l.add(f);
+				return f;
+			}
+		}
+		f.fail(new IOException("Connection closed"));
+		return f;
+	}
+	
+	/**
+	 * Stop offering messages to a future.
+	 * @param f The future.
+	 */
+	void remove(MessageFuture f){
+		synchronized(waiters){
+			if(f.key == null){
+				waiters.remove(f);
+				return;
+			}
+			LinkedList<MessageFuture> l = keyed.get(f.key);
+			if(l != null && l.remove(f) && l.isEmpty())
+				keyed.remove(f.key);
+		}
+	}
+}
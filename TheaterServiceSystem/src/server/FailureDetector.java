@@ -0,0 +1,159 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+
+import message.*;
+
+/**
+ * FailureDetector tells when another server is dead without waiting for a request to time out. Every message received
+ * from a server counts as a heartbeat, and a CLOCK_MESSAGE is sent to a server only when nothing else has been sent to it
+ * for HEARTBEAT_INTERVAL, so busy links carry no extra message. From the intervals between the messages received from a
+ * server, the detector computes how suspicious the silence since the last one is, as the phi of the phi-accrual failure
+ * detector (Hayashibara et al.): phi = -log10(P(the next message comes even later)), with the intervals taken as normally
+ * distributed. A server whose phi reaches THRESHOLD is dead: its connection is closed, which fails the replies expected
+ * from it and calls Server.onProcessDied().
+ *
+ */
+public class FailureDetector extends Thread {
+
+	static final int HEARTBEAT_INTERVAL = 100;		//The time(ms) a link stays idle before a heartbeat is sent
+	private static final int TICK = 50;				//The period(ms) in which links and servers are checked
+	private static final double THRESHOLD = 8;		//The phi at which a server is dead, a false suspicion once in 10^8
+	private static final int WINDOW = 200;			//The number of intervals kept per server
+	private static final double MIN_STD_DEVIATION = 100;	//The least deviation(ms) assumed, for servers with steady traffic
+	private static final double ACCEPTABLE_PAUSE = 1000;	//A silence(ms) tolerated on top of the mean, e.g. a GC pause
+
+	/**
+	 * The arrivals of the messages from a server.
+	 */
+	private static class Arrivals{
+		private final double[] intervals = new double[WINDOW];	//The last intervals(ms), in a ring
+		private int count = 0;			//The number of intervals in the ring
+		private int next = 0;			//The slot of the next interval
+		private double sum = 0;			//The sum of the intervals in the ring
+		private double squares = 0;		//The sum of their squares
+		private long last;				//The time(ns) of the last message
+
+		Arrivals(long now){
+			last = now;
+			add(HEARTBEAT_INTERVAL);	//Until messages are received, assume heartbeats on an idle link.
+		}
+
+		void add(double interval){
+			if(count == WINDOW){
+				sum -= intervals[next];
+				squares -= intervals[next] * intervals[next];
+			}else
+				count++;
+			intervals[next] = interval;
+			next = (next + 1) % WINDOW;
+			sum += interval;
+			squares += interval * interval;
+		}
+
+		void arrived(long now){
+			add((now - last) / 1e6);
+			last = now;
+		}
+
+		/**
+		 * Return the suspicion level of the silence since the last message.
+		 * @param now The time(ns).
+		 * @return The phi.
+		 */
+		double phi(long now){
+			double silence = (now - last) / 1e6;
+			double mean = sum / count;
+			double deviation = Math.max(MIN_STD_DEVIATION, Math.sqrt(Math.max(0, squares / count - mean * mean)));
+			double y = (silence - mean - ACCEPTABLE_PAUSE) / deviation;
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));	//A logistic approximation of the normal cdf
+			return silence > mean + ACCEPTABLE_PAUSE? -Math.log10(e / (1 + e)): -Math.log10(1 - 1 / (1 + e));
+		}
+	}
+
+	private static final HashMap<Process, Arrivals> arrivals = new HashMap<Process, Arrivals>();	//Guarded by itself
+
+	/**
+	 * Record a message received from a server.
+	 * @param process The server.
+	 */
+	static void heartbeat(Process process){
+		long now = System.nanoTime();
+		synchronized(arrivals){
+			Arrivals a = arrivals.get(process);
+			if(a == null)
+				arrivals.put(process, new Arrivals(now));
+			else
+				a.arrived(now);
+		}
+	}
+
+	/**
+	 * Create the detector of this server. It is a daemon, started once this server has joined the cluster.
+	 */
+	public FailureDetector(){
+		super("failure-detector");
+		setDaemon(true);
+	}
+
+	@Override
+	public void run(){
+		while(true){
+			long now = System.nanoTime();
+			for(Process p : Server.clusterInfo.values()){
+				if(p.pid == Server.pid) continue;
+				if(!p.live){
+					synchronized(arrivals){	//A server added again starts a new history.
+						arrivals.remove(p);
+					}
+					continue;
+				}
+				double phi;
+				synchronized(arrivals){
+					Arrivals a = arrivals.get(p);
+					if(a == null)
+						arrivals.put(p, a = new Arrivals(now));
+					phi = a.phi(now);
+					if(phi >= THRESHOLD)
+						arrivals.remove(p);
+				}
+				if(phi >= THRESHOLD)
+					suspect(p, phi);
+				else if(now - p.lastSent() >= HEARTBEAT_INTERVAL * 1000000L)
+					sendHeartbeat(p);
+			}
+			try {
+				Thread.sleep(TICK);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Send a heartbeat to a server on an idle link.
+	 * @param p The server.
+	 */
+	private static void sendHeartbeat(Process p){
+		p.message_event_lock();
+		try {
+			p.sendMessage(new Message(MessageType.CLOCK_MESSAGE, null, Server.updateClock()));
+		} catch (IOException e) {}	//The connection is closed, onClosed() reports the server dead.
+		p.message_event_unlock();
+	}
+
+	/**
+	 * Declare a server dead.
+	 * @param p The server.
+	 * @param phi Its suspicion level.
+	 */
+	private static void suspect(Process p, double phi){
+		System.err.println("pid="+p.pid+" has been silent too long (phi="+String.format("%.1f", phi)+")");
+		Connection c = p.connection();
+		if(c != null)
+			c.close();	//Then onClosed() fails the replies expected from it and reports it dead.
+		else
+			Server.onProcessDied(p);
+	}
+}
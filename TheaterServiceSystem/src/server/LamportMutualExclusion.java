@@ -0,0 +1,157 @@
+package server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+import message.*;
+
+/**
+ * LamportMutualExclusion is Lamport's queue based mutual exclusion algorithm with readers and writers. A request is
+ * broadcast to every server and acknowledged by each of them, and the release is broadcast again, so that every server
+ * keeps the same queue of requests. Writes are shipped on the release message.
+ *
+ */
+public class LamportMutualExclusion extends MutualExclusion {
+	
+	private final RequestQueue requests = new RequestQueue();	//The queue of waiting requests
+	
+	//Synchronization locks
+	private static final int MAX_READER_IN_A_SERVER = 20;	//Maximum number of concurent readers in each server.
+	private final Semaphore read_write_lock = new Semaphore(MAX_READER_IN_A_SERVER);	//The read-write lock
+	private final Semaphore cs_lock = new Semaphore(1);	//Lock to ensure that only one thread can call requestCS
+	
+	/**
+	 * Create the protocol for a section.
+	 * @param section The section.
+	 */
+	public LamportMutualExclusion(Section section){
+		super(section);
+	}
+	
+	@Override
+	public void requestCriticalSection(boolean read) throws IOException {
+		long start = System.nanoTime();
+		//Acquire lock firstly
+		try {
+			if(read) read_write_lock.acquire();
+			else read_write_lock.acquire(MAX_READER_IN_A_SERVER);
+			cs_lock.acquire();
+		} catch (InterruptedException e1) {
+			e1.printStackTrace();
+		}
+	
+		final MessageType type = read? MessageType.CS_REQUEST_READ : MessageType.CS_REQUEST_WRITE;		//The sending message type.
+		final MessageType ackType = read? MessageType.ACKNOWLEDGE_READ : MessageType.ACKNOWLEDGE_WRITE;	//The receiving message type.
+		
+		for(Process process : Server.clusterInfo.values())
+			process.message_event_lock();
+		
+		//Send the requests to all other servers, expecting their acks first so that none is missed
+		long sent = System.nanoTime();
+		HashMap<Process, MessageFuture> acks = new HashMap<Process, MessageFuture>();
+		final Message msg = section.message(type, null);	//The request message
+		for(Process process : Server.clusterInfo.values()){
+			if(!process.live || process.pid == Server.pid) continue;
+			try{
+				//An ack carries the clock of the request it answers.
+				acks.put(process, process.expectMessage(new MessageKey(ackType, section.name, msg.clk), Server.MAX_RESPONSE_TIME)); //Wait for its ack reply for 5s.
+				process.sendMessage(msg);
+				sent(1);
+			}catch(IOException e){}	//If the request is not sent, its ack times out.
+		}
+		for(Process process : Server.clusterInfo.values())
+			process.message_event_unlock();
+		
+		//Wait until all acks are received.
+		for(Map.Entry<Process, MessageFuture> ack : acks.entrySet())
+			try {
+				ack.getValue().get();
+			}catch (IOException e){
+				Server.onProcessDied(ack.getKey());	//No response, make it is died.
+			}
+		//---------------------------------------------------------------------------------------------------------------
+		//If enter this line, then congratulations! You have received acks from all lived servers
+		long acked = System.nanoTime();
+		Metrics.ackWait.record(acked - sent);
+		requests.add(msg);	//Add itself to the request queue
+		//A reader waits for the write requests whose timestamp is smaller, a writer for every request before it.
+		requests.await(msg);
+		Metrics.queueWait.record(System.nanoTime() - acked);
+		//After it's notified and satisfies the requirements, it can enter the cs once the local service is up to date.
+		section.awaitFreshState();
+		entered(start);
+		cs_lock.release();
+	}
+	
+	@Override
+	public void releaseCriticalSection(boolean read, Serializable state) throws IOException{
+		//Remove its request from the queue firstly
+		Message msg = requests.removeFirst(Server.pid);
+		assert(msg != null && msg.clk.pid == Server.pid);
+		assert(read == (msg.type == MessageType.CS_REQUEST_READ));
+		//Then tell every server that I want to release the critical section
+		for(Process process : Server.clusterInfo.values()){
+			if(!process.live || process.pid == Server.pid) continue;
+			try {
+				send(process, section.message(MessageType.CS_RELEASE, state));
+			} catch (IOException e) {}
+		}
+		if(!read) read_write_lock.release(MAX_READER_IN_A_SERVER);
+		else read_write_lock.release();
+	}
+	
+	@Override
+	public int[] queueDepth(){
+		return requests.depth();
+	}
+	
+	@Override
+	public boolean onReceivingMessage(Message msg, Process process) throws IOException{
+		switch(msg.type){
+			case CS_REQUEST_READ: 
+				//When receive the read request, add the request to the queue, then send back an acknowledgement.
+				requests.add(msg);
+				send(process, section.message(MessageType.ACKNOWLEDGE_READ, msg.clk));
+				return true;
+				
+			case CS_REQUEST_WRITE:
+				//When receive the write request, add the request to the queue and write queue, then send back an acknowledgement.
+				requests.add(msg);
+				send(process, section.message(MessageType.ACKNOWLEDGE_WRITE, msg.clk));
+				return true;
+				
+			case CS_RELEASE:
+				boolean outdated = false;
+				synchronized(requests){
+					Message del = requests.peek(msg.clk.pid);
+					if(del == null) return true;
+					if(del.type == MessageType.CS_REQUEST_WRITE)
+						outdated = section.onReplicatedState(msg.content, process);	//Must be done before the next writer is woken up.
+					requests.removeFirst(msg.clk.pid);	//Wakes up the local request which may enter now, if any.
+				}
+				if(outdated)
+					section.sendSnapshotRequest(process);
+				return true;
+				
+			default:
+				return false;
+		}
+	}
+	
+	@Override
+	public void onProcessDied(Process process){
+		requests.removeAll(process.pid);
+	}
+	
+	@Override
+	public Serializable exportState(){
+		return requests.export();
+	}
+	
+	@Override
+	public void importState(Serializable state){
+		requests.load(state);
+	}
+}
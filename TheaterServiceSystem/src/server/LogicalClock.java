@@ -0,0 +1,67 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogicalClock is the Lamport clock of this process, updated without a lock. The timestamp and the pid are packed in one
+ * long (timestamp << PID_BITS | pid), so that a tick is a single atomic add and a merge with a received timestamp is a
+ * compare-and-set loop. A Clock object is only created for the messages which carry the time.
+ *
+ */
+public class LogicalClock {
+
+	static final int PID_BITS = 16;	//The low bits holding the pid, the timestamp has the other 48 bits.
+
+	private final AtomicLong packed;	//The current time, packed
+	private final int pid;				//The pid of this process
+
+	/**
+	 * Create a clock at timestamp 0.
+	 * @param pid The pid of this process.
+	 */
+	public LogicalClock(int pid){
+		if(pid < 0 || pid >= 1 << PID_BITS)
+			throw new IllegalArgumentException("pid "+pid+" does not fit in "+PID_BITS+" bits");
+		this.pid = pid;
+		packed = new AtomicLong(pid);
+	}
+
+	/**
+	 * Increase the timestamp by 1.
+	 * @return The new time, packed.
+	 */
+	public long tick(){
+		return packed.addAndGet(1L << PID_BITS);
+	}
+
+	/**
+	 * Move past a timestamp received from another process: the new timestamp is max(local, received) + 1.
+	 * @param timestamp The timestamp received.
+	 * @return The new time, packed.
+	 */
+	public long merge(long timestamp){
+		while(true){
+			long cur = packed.get();
+			long next = (Math.max(cur >>> PID_BITS, timestamp) + 1) << PID_BITS | pid;
+			if(packed.compareAndSet(cur, next))
+				return next;
+		}
+	}
+
+	/**
+	 * Return the current time.
+	 * @return The time, packed.
+	 */
+	public long get(){
+		return packed.get();
+	}
+
+	/**
+	 * Create the Clock of a packed time, to send it.
+	 * @param time The time, packed.
+	 * @return The clock.
+	 */
+	public Clock toClock(long time){
+		return new Clock(time >>> PID_BITS, pid);
+	}
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import message.*;
+
+/**
+ * MessageFuture is a message expected from a connection. It is registered before the request is sent, completed by the
+ * connection when a matching message arrives, and failed by the shared TimerWheel if none arrives in time, so waiting
+ * for a reply takes no thread of its own.
+ *
+ */
+public class MessageFuture {
+
+	private final Connection connection;	//The connection the message is expected from
+	private final MessageFilter filter;		//The filter of the message expected, null if it is expected by key
+	final MessageKey key;					//The key of the message expected, null if it is expected by filter
+	private Message message = null;			//The message, once received
+	private IOException failure = null;		//The reason why no message will be received
+	private boolean done = false;			//If the message is received or failed
+	private TimerWheel.Timeout timeout = null;	//The timeout, null if there is none
+
+	/**
+	 * Create a future for a message. It is not registered with the connection yet.
+	 * @param connection The connection.
+	 * @param filter The filter of the message expected.
+	 */
+	MessageFuture(Connection connection, MessageFilter filter){
+		this.connection = connection;
+		this.filter = filter;
+		this.key = null;
+	}
+	
+	/**
+	 * Create a future for the message with a key. It is not registered with the connection yet.
+	 * @param connection The connection.
+	 * @param key The key of the message expected.
+	 */
+	MessageFuture(Connection connection, MessageKey key){
+		this.connection = connection;
+		this.filter = null;
+		this.key = key;
+	}
+
+	/**
+	 * Fail this future if no message is received in time.
+	 * @param time The time(ms).
+	 */
+	void timeoutAfter(int time){
+		TimerWheel.Timeout t = TimerWheel.shared().schedule(new Runnable(){
+			@Override
+			public void run(){
+				fail(new SocketTimeoutException());
+			}
+		}, time);
+		synchronized(this){
+			if(done) t.cancel();
+			else timeout = t;
+		}
+	}
+
+	/**
+	 * Complete this future with a message received, if it matches. A future expected by key is only offered the messages
+	 * with that key.
+	 * @param msg The message.
+	 * @return True if this future is done afterwards and should not be offered messages anymore.
+	 */
+	boolean offer(Message msg){
+		if(filter != null && !filter.filt(msg)) return isDone();
+		synchronized(this){
+			if(done) return true;
+			message = msg;
+			done = true;
+			if(timeout != null) timeout.cancel();
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Fail this future, unless it is already done.
+	 * @param e The reason.
+	 */
+	void fail(IOException e){
+		synchronized(this){
+			if(done) return;
+			failure = e;
+			done = true;
+			if(timeout != null) timeout.cancel();
+			notifyAll();
+		}
+		connection.remove(this);
+	}
+
+	/**
+	 * Check if this future is done.
+	 * @return True if a message is received or it has failed.
+	 */
+	public synchronized boolean isDone(){
+		return done;
+	}
+
+	/**
+	 * Block until the message is received.
+	 * @return The message.
+	 * @throws SocketTimeoutException If no message was received in time.
+	 * @throws IOException If the connection is closed before.
+	 */
+	public Message get() throws IOException{
+		boolean interrupted = false;
+		synchronized(this){
+			while(!done && !interrupted)
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+		}
+		if(interrupted)
+			fail(new SocketTimeoutException());	//Outside the monitor, fail() locks the connection.
+		synchronized(this){
+			if(failure != null)
+				throw failure;
+			return message;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package server;
+
+import message.*;
+
+/**
+ * MessageKey identifies a reply: its type, its section and the request it answers, which is the clock of the request
+ * carried as the content of the reply (null if the reply does not name a request). Together with the connection, which
+ * stands for the sender, it lets a reply be handed to the thread waiting for it directly.
+ *
+ */
+public final class MessageKey {
+
+	public final MessageType type;	//The type of the reply
+	public final String section;	//The section of the reply, null if it is not about a section
+	public final Clock request;		//The clock of the request answered, null if the reply does not name one
+
+	/**
+	 * Create a key.
+	 * @param type The type of the reply.
+	 * @param section The section of the reply.
+	 * @param request The clock of the request answered.
+	 */
+	public MessageKey(MessageType type, String section, Clock request){
+		this.type = type;
+		this.section = section;
+		this.request = request;
+	}
+
+	/**
+	 * Return the key of a message received.
+	 * @param msg The message.
+	 * @return The key.
+	 */
+	static MessageKey of(Message msg){
+		return new MessageKey(msg.type, msg.section, msg.content instanceof Clock? (Clock) msg.content: null);
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(!(o instanceof MessageKey)) return false;
+		MessageKey k = (MessageKey) o;
+		return type == k.type && (section == null? k.section == null: section.equals(k.section))
+				&& (request == null? k.request == null: request.equals(k.request));
+	}
+
+	@Override
+	public int hashCode(){
+		return (type == null? 0: type.hashCode()) * 961 + (section == null? 0: section.hashCode()) * 31
+				+ (request == null? 0: request.hashCode());
+	}
+
+	@Override
+	public String toString(){
+		return "["+type+", "+section+", "+request+"]";
+	}
+}
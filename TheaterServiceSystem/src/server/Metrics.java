@@ -0,0 +1,283 @@
+package server;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import message.MessageType;
+
+/**
+ * Metrics records what a server does, to be read through JMX (see MetricsMXBean) or dumped as text periodically with
+ * -metrics: the latency of the client requests by type, the time the critical section requests wait for acknowledgements
+ * and in the request queue, the messages exchanged with every other server, the depth of the request queues and the
+ * servers found dead.
+ *
+ * Recording never takes a lock: a latency is counted in a bucket of a Histogram with one atomic increment, and the
+ * message counters are LongAdders kept by each Process.
+ *
+ */
+public class Metrics implements MetricsMXBean {
+
+	/**
+	 * Histogram is a lock-free histogram of times. A time is counted in one of eight buckets between two powers of two,
+	 * so a percentile is known within 12.5% for any time from 1ns to centuries, in 488 counters.
+	 */
+	public static class Histogram{
+		private static final int SUB_BITS = 3;				//2^SUB_BITS buckets between two powers of two
+		private static final int SUB = 1 << SUB_BITS;
+		private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Record a time.
+		 * @param ns The time(ns).
+		 */
+		public void record(long ns){
+			if(ns < 0) ns = 0;
+			buckets.incrementAndGet(bucket(ns));
+			count.increment();
+			sum.add(ns);
+			long m;
+			while(ns > (m = max.get()) && !max.compareAndSet(m, ns));
+		}
+
+		/**
+		 * Return the bucket of a time.
+		 * @param ns The time(ns), not negative.
+		 * @return The index of the bucket.
+		 */
+		private static int bucket(long ns){
+			if(ns < SUB) return (int) ns;
+			int exp = 63 - Long.numberOfLeadingZeros(ns);	//At least SUB_BITS
+			return (exp - SUB_BITS + 1) * SUB + (int) ((ns >>> (exp - SUB_BITS)) & (SUB - 1));
+		}
+
+		/**
+		 * Return the largest time counted in a bucket.
+		 * @param index The index of the bucket.
+		 * @return The time(ns).
+		 */
+		private static long upperBound(int index){
+			if(index < SUB) return index;
+			int exp = index / SUB + SUB_BITS - 1, sub = index % SUB;
+			return ((SUB + sub + 1L) << (exp - SUB_BITS)) - 1;
+		}
+
+		/**
+		 * Return a summary of the times recorded so far. The buckets are read one by one while times may still be
+		 * recorded, so the percentiles are as of some moment during the call.
+		 * @return The summary.
+		 */
+		public Summary summary(){
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for(int i = 0; i < counts.length; i++)
+				total += counts[i] = buckets.get(i);
+			long n = count.sum();
+			return new Summary(n, n == 0? 0: sum.sum() / n / 1000.0, percentile(counts, total, 0.5),
+					percentile(counts, total, 0.99), percentile(counts, total, 0.999), max.get() / 1000.0);
+		}
+
+		/**
+		 * Return a percentile of the counted times.
+		 * @return The time(us), the largest of its bucket; 0 if nothing is counted.
+		 */
+		private double percentile(long[] counts, long total, double p){
+			long rank = (long) Math.ceil(p * total), seen = 0;
+			for(int i = 0; i < counts.length; i++)
+				if((seen += counts[i]) >= rank && counts[i] > 0)
+					return Math.min(upperBound(i), max.get()) / 1000.0;
+			return 0;
+		}
+	}
+
+	/**
+	 * The summary of a Histogram, in microseconds.
+	 */
+	public static class Summary{
+		private final long count;
+		private final double mean, p50, p99, p999, max;
+
+		@ConstructorProperties({"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"})
+		public Summary(long count, double mean, double p50, double p99, double p999, double max){
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		public long getCount(){ return count; }
+		public double getMeanMicros(){ return mean; }
+		public double getP50Micros(){ return p50; }
+		public double getP99Micros(){ return p99; }
+		public double getP999Micros(){ return p999; }
+		public double getMaxMicros(){ return max; }
+
+		@Override
+		public String toString(){
+			return String.format(Locale.ROOT, "n=%d mean=%.0f p50=%.0f p99=%.0f p999=%.0f max=%.0f us", count, mean, p50, p99,
+					p999, max);
+		}
+	}
+
+	private static final Histogram[] clientLatency = new Histogram[MessageType.values().length];	//By request type
+	static final Histogram ackWait = new Histogram();		//Time for the acks of the other servers, by Lamport
+	static final Histogram queueWait = new Histogram();		//Time in the request queue once acknowledged, by Lamport
+	static final Histogram csWait = new Histogram();		//Time to enter the critical section, by every protocol
+	static final LongAdder processDeaths = new LongAdder();	//Servers found dead
+
+	static{
+		for(int i = 0; i < clientLatency.length; i++)
+			clientLatency[i] = new Histogram();
+	}
+
+	/**
+	 * Record the latency of a client request.
+	 * @param type The type of the request.
+	 * @param ns The time(ns) from receiving the request to sending its response.
+	 */
+	static void clientLatency(MessageType type, long ns){
+		clientLatency[type.ordinal()].record(ns);
+	}
+
+	/**
+	 * Register the metrics on the platform MBean server.
+	 * @param pid The pid of this server, which names the MBean.
+	 */
+	static void register(int pid){
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("server:type=Metrics,pid="+pid));
+		} catch (JMException e) {
+			System.err.println("Unable to register the metrics: "+e);
+		}
+	}
+
+	/**
+	 * Print the metrics periodically on a daemon thread.
+	 * @param seconds The period(s).
+	 */
+	static void startDump(final int seconds){
+		Thread t = new Thread("metrics"){
+			@Override
+			public void run(){
+				while(true){
+					try {
+						Thread.sleep(seconds * 1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println(text());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Return all metrics as text.
+	 * @return The text.
+	 */
+	static String text(){
+		Metrics m = new Metrics();
+		StringBuilder sb = new StringBuilder("Metrics of pid="+Server.pid+":\n");
+		for(Map.Entry<String, Summary> entry : m.getClientLatency().entrySet())
+			sb.append("  latency ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		sb.append("  ack wait: ").append(m.getAckWait()).append('\n');
+		sb.append("  queue wait: ").append(m.getQueueWait()).append('\n');
+		sb.append("  cs wait: ").append(m.getCriticalSectionWait()).append('\n');
+		sb.append("  messages sent: ").append(m.getMessagesSent()).append(", received: ").append(m.getMessagesReceived()).append('\n');
+		sb.append("  queue depth: ").append(m.getQueueDepth()).append(", writes: ").append(m.getWriteQueueDepth()).append('\n');
+		sb.append("  process deaths: ").append(m.getProcessDeaths());
+		return sb.toString();
+	}
+
+	@Override
+	public Map<String, Summary> getClientLatency(){
+		TreeMap<String, Summary> ret = new TreeMap<String, Summary>();
+		for(MessageType type : MessageType.values()){
+			Summary s = clientLatency[type.ordinal()].summary();
+			if(s.getCount() > 0)
+				ret.put(type.name(), s);
+		}
+		return ret;
+	}
+
+	@Override
+	public Summary getAckWait(){
+		return ackWait.summary();
+	}
+
+	@Override
+	public Summary getQueueWait(){
+		return queueWait.summary();
+	}
+
+	@Override
+	public Summary getCriticalSectionWait(){
+		return csWait.summary();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesSent(){
+		TreeMap<String, Long> ret = new TreeMap<String, Long>();
+		for(Process p : Server.clusterInfo.values())
+			if(p.pid != Server.pid)
+				ret.put(String.valueOf(p.pid), p.messagesSent.sum());
+		return ret;
+	}
+
+	@Override
+	public Map<String, Long> getMessagesReceived(){
+		TreeMap<String, Long> ret = new TreeMap<String, Long>();
+		for(Process p : Server.clusterInfo.values())
+			if(p.pid != Server.pid)
+				ret.put(String.valueOf(p.pid), p.messagesReceived.sum());
+		return ret;
+	}
+
+	@Override
+	public Map<String, Integer> getQueueDepth(){
+		return queueDepth(0);
+	}
+
+	@Override
+	public Map<String, Integer> getWriteQueueDepth(){
+		return queueDepth(1);
+	}
+
+	/**
+	 * Return a depth of the request queues of the sections.
+	 * @param index 0 for all requests, 1 for the write requests.
+	 * @return The name of the section to the depth.
+	 */
+	private static Map<String, Integer> queueDepth(int index){
+		LinkedHashMap<String, Integer> ret = new LinkedHashMap<String, Integer>();
+		for(Section section : Server.sections().values()){
+			int[] depth = section.mutex == null? null: section.mutex.queueDepth();
+			if(depth != null)
+				ret.put(section.name, depth[index]);
+		}
+		return ret;
+	}
+
+	@Override
+	public long getProcessDeaths(){
+		return processDeaths.sum();
+	}
+
+	@Override
+	public String getText(){
+		return text();
+	}
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * MetricsMXBean is the management interface of the Metrics of a server, registered as server:type=Metrics,pid=<pid> on
+ * the platform MBean server, so the metrics can be read with jconsole or any JMX client. Times are in microseconds.
+ *
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * Return the latency of the client requests, from receiving a request to sending its response.
+	 * @return The name of the request type to the latency of its requests.
+	 */
+	Map<String, Metrics.Summary> getClientLatency();
+
+	/**
+	 * Return the time a critical section request waits for the acknowledgements of the other servers.
+	 * @return The wait.
+	 */
+	Metrics.Summary getAckWait();
+
+	/**
+	 * Return the time a critical section request waits in the request queue once acknowledged.
+	 * @return The wait.
+	 */
+	Metrics.Summary getQueueWait();
+
+	/**
+	 * Return the time from requesting the critical section to entering it, with every protocol.
+	 * @return The wait.
+	 */
+	Metrics.Summary getCriticalSectionWait();
+
+	/**
+	 * Return the messages sent to every other server.
+	 * @return The pid of the server to the number of messages.
+	 */
+	Map<String, Long> getMessagesSent();
+
+	/**
+	 * Return the messages received from every other server.
+	 * @return The pid of the server to the number of messages.
+	 */
+	Map<String, Long> getMessagesReceived();
+
+	/**
+	 * Return the requests queued by the mutual exclusion protocol of every section which keeps a queue.
+	 * @return The name of the section to the number of requests.
+	 */
+	Map<String, Integer> getQueueDepth();
+
+	/**
+	 * Return the write requests queued by the mutual exclusion protocol of every section which keeps a queue.
+	 * @return The name of the section to the number of write requests.
+	 */
+	Map<String, Integer> getWriteQueueDepth();
+
+	/**
+	 * Return the number of times another server was found dead.
+	 * @return The number.
+	 */
+	long getProcessDeaths();
+
+	/**
+	 * Return all metrics as text, as dumped periodically with -metrics.
+	 * @return The text.
+	 */
+	String getText();
+}
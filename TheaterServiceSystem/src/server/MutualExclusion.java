@@ -0,0 +1,131 @@
+package server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import message.*;
+
+/**
+ * MutualExclusion is a distributed mutual exclusion protocol guarding one section of the theater. Every server in
+ * the cluster must run the same protocol, with one instance per section, and every message it sends carries the section. It also counts the messages it sends and the time spent waiting for the critical
+ * section, so that protocols can be compared.
+ *
+ */
+public abstract class MutualExclusion {
+	
+	protected final Section section;	//The section guarded by this protocol
+	private final AtomicLong entries = new AtomicLong();	//The number of times the critical section was entered.
+	private final AtomicLong messages = new AtomicLong();	//The number of protocol messages sent.
+	private final AtomicLong waitTime = new AtomicLong();	//The total time(ns) spent waiting for the critical section.
+	
+	/**
+	 * Create the protocol for a section.
+	 * @param section The section.
+	 */
+	protected MutualExclusion(Section section){
+		this.section = section;
+	}
+	
+	/**
+	 * Request critial section access. If critial section is unavailable, block the thread until it becomes available.
+	 * @param read true if read, false if write
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	public abstract void requestCriticalSection(boolean read) throws IOException;
+	
+	/**
+	 * Release the critial section, so that other server processes can enter the critial section.
+	 * @param read true if it was entered for read, false if write
+	 * @param state The state of the theater service to ship to other servers (a TheaterService or a TheaterUpdate), null if
+	 * nothing was written.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	public abstract void releaseCriticalSection(boolean read, Serializable state) throws IOException;
+	
+	/**
+	 * Handle a message of this protocol.
+	 * @param msg The message received.
+	 * @param process The process where this message is from.
+	 * @return True if this message belongs to this protocol, false otherwise.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	public abstract boolean onReceivingMessage(Message msg, Process process) throws IOException;
+	
+	/**
+	 * Clear the state of a died process.
+	 * @param process The died process.
+	 */
+	public abstract void onProcessDied(Process process);
+	
+	/**
+	 * Export the protocol state, so that a joining server can start with it.
+	 * @return The state.
+	 */
+	public abstract Serializable exportState();
+	
+	/**
+	 * Start with the protocol state exported by another server.
+	 * @param state The state.
+	 */
+	public abstract void importState(Serializable state);
+	
+	/**
+	 * Return the depth of the queue of requests kept by this protocol, for the metrics.
+	 * @return The number of requests and of write requests, null if the protocol keeps no queue.
+	 */
+	public int[] queueDepth(){
+		return null;
+	}
+	
+	/**
+	 * Called when this server starts a new cluster, i.e. no other server is live when it joins.
+	 */
+	public void onClusterCreated(){}
+	
+	/**
+	 * Send a protocol message to a process and count it.
+	 * @param p The process.
+	 * @param msg The message.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	protected void send(Process p, Message msg) throws IOException{
+		p.message_event_lock();
+		try{
+			p.sendMessage(msg);
+		}finally{
+			p.message_event_unlock();
+		}
+		messages.incrementAndGet();
+	}
+	
+	/**
+	 * Count protocol messages sent without send().
+	 * @param n The number of messages.
+	 */
+	protected void sent(int n){
+		messages.addAndGet(n);
+	}
+	
+	/**
+	 * Record an entry to the critical section.
+	 * @param start The System.nanoTime() when the critical section was requested.
+	 */
+	protected void entered(long start){
+		long wait = System.nanoTime() - start;
+		Metrics.csWait.record(wait);
+		entries.incrementAndGet();
+		waitTime.addAndGet(wait);
+		System.out.println("Entered critical section in "+wait/1000000+" ms. "+statistics());
+	}
+	
+	/**
+	 * Return the statistics of this protocol.
+	 * @return The statistics.
+	 */
+	public String statistics(){
+		long n = entries.get();
+		return getClass().getSimpleName()+"("+section+"): "+n+" entries, "+messages.get()+" messages sent, average wait "+
+				(n == 0? 0: waitTime.get()/n/1000)+" us";
+	}
+}
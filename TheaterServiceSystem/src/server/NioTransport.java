@@ -0,0 +1,376 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import message.*;
+
+/**
+ * NioTransport serves every client and server connection with a few event loop threads, each running a Selector, instead
+ * of one blocking thread per connection. Frames are read and written without blocking by the event loops. The messages of
+ * a connection are then handled one by one, in order, on a shared pool of worker threads, so a connection only takes a
+ * thread while one of its messages is being handled (which may block, e.g. while waiting for the critical section).
+ * The messages of clients and of servers are handled by two bounded pools: a client request may wait for the messages of
+ * servers, which must then not wait for a worker held by clients.
+ *
+ */
+public class NioTransport {
+
+	private static EventLoop[] loops = null;	//The event loops, null if this transport is not used.
+	private static int nextLoop = 0;			//The loop the next connection is registered with.
+	private static final int CLIENT_WORKERS = 32;	//The number of threads handling the messages of clients
+	private static final int SERVER_WORKERS = 8;	//The number of threads handling the messages of servers, which do not block
+	private static final ExecutorService clientWorkers = workers("nio-client-worker", CLIENT_WORKERS);	//Threads handling the messages of clients
+	private static final ExecutorService serverWorkers = workers("nio-server-worker", SERVER_WORKERS);	//Threads handling the messages of servers
+	private static final AtomicLong ids = new AtomicLong();	//Ids of connections
+
+	/**
+	 * Create a bounded pool of worker threads.
+	 * @param name The name of the threads.
+	 * @param size The number of threads.
+	 * @return The pool.
+	 */
+	private static ExecutorService workers(final String name, int size){
+		return Executors.newFixedThreadPool(size, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * A thread running a selector for some of the connections.
+	 */
+	private static class EventLoop extends Thread{
+		final Selector selector;
+		final ConcurrentLinkedQueue<NioConnection> registrations = new ConcurrentLinkedQueue<NioConnection>();	//Connections to register
+
+		public EventLoop(int id) throws IOException{
+			super("nio-loop-"+id);
+			selector = Selector.open();
+			setDaemon(true);
+		}
+
+		/**
+		 * Register a connection with this loop, so that it starts reading.
+		 * @param c The connection.
+		 */
+		void register(NioConnection c){
+			registrations.add(c);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run(){
+			while(true){
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+				NioConnection c;
+				while((c = registrations.poll()) != null){
+					try {
+						c.register(selector);
+					} catch (ClosedChannelException e) {
+						c.closed();
+					}
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey key = it.next();
+					it.remove();
+					c = (NioConnection) key.attachment();
+					try{
+						if(key.isValid() && key.isWritable())
+							c.flush();
+						if(key.isValid() && key.isReadable())
+							c.read();
+					}catch(IOException e){
+						c.closed();
+					}catch(CancelledKeyException e){
+						c.closed();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A non-blocking connection served by an event loop.
+	 */
+	private static class NioConnection extends Connection{
+
+		private static final Message END = new Message(null, null, null);	//Queued after the last message received
+
+		final SocketChannel channel;
+		final EventLoop loop;
+		private SelectionKey key;	//Set by the loop when the channel is registered, guarded by outbox
+		private final long id = ids.incrementAndGet();
+		private ByteBuffer in = ByteBuffer.allocate(16 * 1024);	//Bytes received but not decoded yet
+		private final LinkedList<ByteBuffer> outbox = new LinkedList<ByteBuffer>();	//Frames not fully sent yet
+		private boolean closing = false;	//If the channel is being closed, guarded by outbox
+		private final LinkedList<Message> inbox = new LinkedList<Message>();	//Messages waiting to be handled
+		private boolean handling = false;	//If a worker is handling the messages in the inbox, guarded by inbox
+
+		/**
+		 * Create a connection, associated with a temporary process.
+		 * @param channel The channel, connected.
+		 * @param loop The event loop serving this connection.
+		 * @throws IOException If the channel cannot be made non-blocking.
+		 */
+		public NioConnection(SocketChannel channel, EventLoop loop) throws IOException{
+			this.channel = channel;
+			this.loop = loop;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			new Process(-1,null,-1).associate(this);
+		}
+
+		@Override
+		public void start(){
+			System.out.println("Connection "+id+" starts on "+loop.getName()+"!");
+			loop.register(this);
+		}
+
+		@Override
+		public long id(){
+			return id;
+		}
+
+		/**
+		 * Register the channel with the selector of the event loop. Called by the event loop.
+		 * @param selector The selector.
+		 * @throws ClosedChannelException If the channel is closed.
+		 */
+		void register(Selector selector) throws ClosedChannelException{
+			synchronized(outbox){	//Frames may have been queued before the registration.
+				key = channel.register(selector, SelectionKey.OP_READ | (outbox.isEmpty()? 0: SelectionKey.OP_WRITE), this);
+			}
+		}
+		
+		/**
+		 * Read what is available from the channel and queue the complete frames. Called by the event loop.
+		 * @throws IOException If there is an error when reading, or the channel is closed.
+		 */
+		void read() throws IOException{
+			int n;
+			while((n = channel.read(in)) > 0){
+				in.flip();
+				while(in.remaining() >= 4){
+					int length = in.getInt(in.position());
+					MessageCodec.checkLength(length);
+					if(in.remaining() < 4 + length){
+						if(4 + length > in.capacity()){	//Make room for the whole frame
+							ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+							bigger.put(in);
+							bigger.flip();
+							in = bigger;
+						}
+						break;
+					}
+					in.position(in.position() + 4);
+					received(MessageCodec.decode(in.array(), in.arrayOffset() + in.position(), length));
+					in.position(in.position() + length);
+				}
+				in.compact();
+			}
+			if(n < 0)
+				throw new IOException("Connection closed by peer");
+		}
+
+		/**
+		 * Queue a message to be handled, and hand the queue to a worker if none is handling it: a server worker if the
+		 * connection is known to come from a server, a client worker otherwise.
+		 * @param msg The message, END if no more message will be received.
+		 */
+		private void received(Message msg){
+			synchronized(inbox){
+				inbox.add(msg);
+				if(handling) return;
+				handling = true;
+			}
+			(process.pid >= 0? serverWorkers: clientWorkers).execute(new Runnable(){
+				@Override
+				public void run(){
+					handle();
+				}
+			});
+		}
+
+		/**
+		 * Handle the queued messages in order, until the queue is empty.
+		 */
+		private void handle(){
+			while(true){
+				Message msg;
+				synchronized(inbox){
+					msg = inbox.poll();
+					if(msg == null){
+						handling = false;
+						return;
+					}
+				}
+				if(msg == END){
+					onClosed();
+					return;
+				}
+				boolean open;
+				try {
+					open = onMessage(msg);
+				} catch (IOException e) {
+					open = false;
+				}
+				if(!open){
+					closeChannel();
+					onClosed();
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void sendMessage(Message msg) throws IOException{
+			ByteBuffer frame = ByteBuffer.wrap(MessageCodec.encode(msg));
+			synchronized(outbox){
+				if(closing || !channel.isOpen())
+					throw new IOException("Connection is closed");
+				if(outbox.isEmpty()){
+					channel.write(frame);	//Usually the whole frame fits in the socket buffer.
+					if(!frame.hasRemaining()) return;
+				}
+				outbox.add(frame);
+				if(key != null){	//Otherwise register() asks for OP_WRITE.
+					try{
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}catch(CancelledKeyException e){
+						throw new IOException("Connection is closed");
+					}
+					loop.selector.wakeup();
+				}
+			}
+		}
+
+		/**
+		 * Write the frames waiting in the outbox. Called by the event loop when the channel is writable.
+		 * @throws IOException If there is an error when writing.
+		 */
+		void flush() throws IOException{
+			synchronized(outbox){
+				while(!outbox.isEmpty()){
+					ByteBuffer frame = outbox.peek();
+					channel.write(frame);
+					if(frame.hasRemaining()) return;
+					outbox.poll();
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		@Override
+		public void close(){
+			closed();
+		}
+
+		/**
+		 * Close the channel.
+		 */
+		private void closeChannel(){
+			synchronized(outbox){
+				closing = true;
+				outbox.clear();
+			}
+			if(key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+
+		/**
+		 * Called by the event loop when the channel is broken or closed by the peer. The messages received before are
+		 * still handled before the connection is reported closed.
+		 */
+		void closed(){
+			synchronized(outbox){
+				if(closing) return;
+			}
+			closeChannel();
+			received(END);
+		}
+	}
+
+	/**
+	 * Start the event loops. Connections made afterwards use this transport.
+	 * @param threads The number of event loop threads.
+	 * @throws IOException If a selector cannot be opened.
+	 */
+	static synchronized void start(int threads) throws IOException{
+		EventLoop[] l = new EventLoop[threads];
+		for(int i = 0; i < threads; i++){
+			l[i] = new EventLoop(i);
+			l[i].start();
+		}
+		loops = l;
+		System.out.println("NIO transport started with "+threads+" event loops");
+	}
+
+	/**
+	 * Check if this transport is used.
+	 * @return True if the event loops are started.
+	 */
+	static synchronized boolean isStarted(){
+		return loops != null;
+	}
+
+	/**
+	 * Choose an event loop for a new connection, in turn.
+	 * @return The loop.
+	 */
+	private static synchronized EventLoop nextLoop(){
+		EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		return loop;
+	}
+
+	/**
+	 * Connect to a server. The connection does not read until it is started.
+	 * @param ip The ip of the server.
+	 * @param port The port of the server.
+	 * @return The connection.
+	 * @throws IOException If the server cannot be connected.
+	 */
+	static Connection connect(String ip, int port) throws IOException{
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(ip, port));
+		try{
+			return new NioConnection(channel, nextLoop());
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Accept connections forever, serving each of them with an event loop.
+	 * @param server The server channel, in blocking mode.
+	 * @throws IOException If there is an error when accepting.
+	 */
+	static void serve(ServerSocketChannel server) throws IOException{
+		while(true){
+			SocketChannel channel = server.accept();	//Got a connection!
+			try{
+				new NioConnection(channel, nextLoop()).start();
+			}catch(IOException e){
+				channel.close();
+			}
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 
 import message.*;
 
@@ -16,11 +17,12 @@ public class Process {
 	public final int pid;					//The pid of a server.
 	public final String ip;					//The ip of a server
 	public final int port;					//The port of a server.
-	private ObjectOutputStream send;		//The stream to send data to the server
-	private ObjectInputStream receive;		//The stream to receive data from server
 	public boolean live;					//If the server process live or dead.
-	private ServerThread thread;			//The thread which listens to incoming messages from this process
+	private volatile Connection connection;	//The connection to this process, which listens to incoming messages
 	private Semaphore message_lock = new Semaphore(1);	//A semaphore associate with this process used for message event
+	private volatile long lastSent = System.nanoTime();	//The time(ns) a message was last sent to this process
+	final LongAdder messagesSent = new LongAdder();		//The messages sent to this process
+	final LongAdder messagesReceived = new LongAdder();	//The messages received from this process
 	
 	/**
 	 * Create a new process object
@@ -54,24 +56,27 @@ public class Process {
 	 */
 	@SuppressWarnings("resource")
 	public void connect() throws IOException{
-		Socket socket = new Socket(ip, port);
-		send = new ObjectOutputStream(socket.getOutputStream());
-		receive = new ObjectInputStream(socket.getInputStream());
-		thread = new ServerThread(receive, send);	//Create a server thread to listen to incoming messages.
-		thread.process = this;
-		thread.start();
+		Connection c = NioTransport.isStarted()? NioTransport.connect(ip, port): new ServerThread(new Socket(ip, port));
+		associate(c);
+		c.start();	//Listen to incoming messages.
 	}
 	
 	/**
-	 * Associate a working serverThread to this process.
-	 * @param thread A working server thread
+	 * Associate a working connection to this process.
+	 * @param connection A working connection
 	 */
-	public void associate(ServerThread thread){
-		assert(thread != null);
-		send = thread.ostream;
-		receive = thread.istream;
-		this.thread = thread;
-		thread.process = this;
+	public void associate(Connection connection){
+		assert(connection != null);
+		this.connection = connection;
+		connection.process = this;
+	}
+	
+	/**
+	 * Return the connection to this process.
+	 * @return The connection, null if it is not connected.
+	 */
+	Connection connection(){
+		return connection;
 	}
 	
 	/**
@@ -79,12 +84,55 @@ public class Process {
 	 * @param msg The message
 	 * @throws IOException If there is an error occurs
 	 */
-	public synchronized void sendMessage(Message msg) throws IOException{
-		if(send == null)
+	public void sendMessage(Message msg) throws IOException{
+		Connection c = connection;
+		if(c == null)
 			throw new IOException("Process is not connected!");
-		send.reset();
-		send.writeObject(msg);
-		send.flush();
+		c.sendMessage(msg);
+		lastSent = System.nanoTime();
+		messagesSent.increment();
+	}
+	
+	/**
+	 * Return when a message was last sent to this process.
+	 * @return The time(ns), as given by System.nanoTime().
+	 */
+	long lastSent(){
+		return lastSent;
+	}
+	
+	/**
+	 * Expect a specific kind of message from this process for certain number of time. The future should be obtained
+	 * before the request is sent, and fails with a SocketTimeoutException if no such message is received on time.
+	 * @param filter The filter to filt specified message
+	 * @param time The waiting time in ms
+	 * @return The future of the message
+	 * @throws IOException When the process is not connected
+	 */
+	public MessageFuture expectMessage(MessageFilter filter, int time) throws IOException{
+		Connection c = connection;
+		if(c == null)
+			throw new IOException("Process is not connected!");
+		MessageFuture f = c.expect(filter);
+		f.timeoutAfter(time);
+		return f;
+	}
+	
+	/**
+	 * Expect the message with a key from this process for certain number of time. Unlike a filter, the key lets the
+	 * message be handed to the future directly.
+	 * @param key The key of the message
+	 * @param time The waiting time in ms
+	 * @return The future of the message
+	 * @throws IOException When the process is not connected
+	 */
+	public MessageFuture expectMessage(MessageKey key, int time) throws IOException{
+		Connection c = connection;
+		if(c == null)
+			throw new IOException("Process is not connected!");
+		MessageFuture f = c.expect(key);
+		f.timeoutAfter(time);
+		return f;
 	}
 	
 	/**
@@ -97,27 +145,7 @@ public class Process {
 	 * @throws IOException When the process is not connected
 	 */
 	public Message waitMessage(final MessageFilter filter, final int time) throws IOException{
-		if(receive == null || thread == null)
-			throw new IOException("Process is not connected!");
-		Message ret = null;
-		final Thread waitThread = Thread.currentThread();
-		Thread monitor = new Thread(){
-			@Override
-			public void run(){
-				try {
-					Thread.sleep(time);
-					waitThread.interrupt();
-				} catch (InterruptedException e) {}	
-			}
-		};
-		monitor.start();
-		try {
-			ret = thread.waitForMessage(filter);
-		} catch (InterruptedException e) {
-			throw new SocketTimeoutException();
-		}
-		monitor.interrupt();
-		return ret;
+		return expectMessage(filter, time).get();
 	}
 	
 	/**
@@ -140,6 +168,6 @@ public class Process {
 	
 	@Override
 	public String toString(){
-		return "Process "+pid+": addr="+ip+":"+port+", live="+live+", threadId="+(thread==null?null:thread.getId());
+		return "Process "+pid+": addr="+ip+":"+port+", live="+live+", connection="+(connection==null?null:connection.id());
 	}
 }
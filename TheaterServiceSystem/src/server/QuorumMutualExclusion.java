@@ -0,0 +1,330 @@
+package server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+import message.*;
+
+/**
+ * QuorumMutualExclusion is Maekawa's quorum based mutual exclusion algorithm. The live servers are laid out in a grid of
+ * about sqrt(N) columns, and the quorum of a server is its row and its column, so any two quorums intersect. A server
+ * enters the critical section after every member of its quorum has voted for it, and each member votes for one request at
+ * a time. Deadlocks are resolved with INQUIRE/YIELD/FAILED. Readers are treated as writers.
+ *
+ * When a server dies, its votes are given to the next requests, and requesters waiting for it recompute their quorum over
+ * the remaining live servers. Servers may briefly disagree on the live set, and this window is accepted.
+ *
+ */
+public class QuorumMutualExclusion extends MutualExclusion {
+	
+	/**
+	 * A message to be sent once the monitor of this object is released.
+	 */
+	private static class Outgoing{
+		public final int to;					//The pid of the receiver
+		public final MessageType type;			//The type of message
+		public final Serializable content;		//The content of message
+		public final Clock clk;					//The timestamp of message, null to take a new one
+		
+		public Outgoing(int to, MessageType type, Serializable content, Clock clk){
+			this.to = to;
+			this.type = type;
+			this.content = content;
+			this.clk = clk;
+		}
+	}
+	
+	//As a voter
+	private Clock votedFor = null;	//The request this server voted for, null if its vote is free.
+	private final TreeSet<Clock> queue = new TreeSet<Clock>();	//Requests waiting for the vote of this server.
+	private boolean inquired = false;	//If an INQUIRE has been sent for the current vote.
+	private long version = 0;			//The latest version of the theater service released to this server.
+	private int versionPid = -1;		//The server who released that version.
+	
+	//As a requester
+	private Clock request = null;		//The request of this server, null if it is not requesting.
+	private HashSet<Integer> quorum = new HashSet<Integer>();			//The servers whose votes are needed.
+	private final HashSet<Integer> asked = new HashSet<Integer>();		//The servers the request was sent to.
+	private final HashSet<Integer> granted = new HashSet<Integer>();	//The servers who voted for the request.
+	private final HashSet<Integer> inquiries = new HashSet<Integer>();	//The servers whose INQUIRE is deferred.
+	private boolean failed = false;		//If the request got a FAILED or has yielded.
+	private boolean inCS = false;		//If this server is in the critical section.
+	private long grantVersion = 0;		//The latest version known by the voters.
+	private int grantVersionPid = -1;	//The server who released that version.
+	private final Semaphore local_lock = new Semaphore(1);	//Lock to ensure that only one thread of this server requests at a time
+	
+	/**
+	 * Create the protocol for a section.
+	 * @param section The section.
+	 */
+	public QuorumMutualExclusion(Section section){
+		super(section);
+	}
+	
+	@Override
+	public void requestCriticalSection(boolean read) throws IOException {
+		long start = System.nanoTime();
+		try {
+			local_lock.acquire();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		LinkedList<Outgoing> out = new LinkedList<Outgoing>();
+		Clock req = Server.updateClock();
+		synchronized(this){
+			request = req;
+			quorum = quorum();
+			asked.clear();
+			granted.clear();
+			inquiries.clear();
+			failed = false;
+			grantVersion = 0;
+			grantVersionPid = -1;
+			for(int member : quorum){
+				asked.add(member);
+				out.add(new Outgoing(member, MessageType.QUORUM_REQUEST, null, req));
+			}
+		}
+		flush(out);
+		int from;
+		long v;
+		synchronized(this){
+			while(!granted.containsAll(quorum))
+				try {
+					wait();
+				} catch (InterruptedException e) {}
+			inCS = true;
+			from = grantVersionPid;
+			v = grantVersion;
+		}
+		//The votes may arrive before the writes of the previous holder.
+		section.awaitVersion(v, from < 0? null: Server.clusterInfo.get(from));
+		section.awaitFreshState();
+		entered(start);
+	}
+	
+	@Override
+	public void releaseCriticalSection(boolean read, Serializable state) throws IOException{
+		if(state != null){
+			//Ship the writes to everybody before releasing the votes.
+			for(Process process : Server.clusterInfo.values()){
+				if(!process.live || process.pid == Server.pid) continue;
+				try {
+					send(process, section.message(MessageType.STATE_UPDATE, state));
+				} catch (IOException e) {}
+			}
+		}
+		LinkedList<Outgoing> out = new LinkedList<Outgoing>();
+		synchronized(this){
+			assert(inCS);
+			long[] content = new long[]{request.timestamp, section.version()};
+			for(int member : asked)
+				out.add(new Outgoing(member, MessageType.QUORUM_RELEASE, content, null));
+			request = null;
+			inCS = false;
+		}
+		flush(out);
+		local_lock.release();
+	}
+	
+	@Override
+	public boolean onReceivingMessage(Message msg, Process process) throws IOException{
+		switch(msg.type){
+			case QUORUM_REQUEST:
+			case QUORUM_LOCKED:
+			case QUORUM_FAILED:
+			case QUORUM_INQUIRE:
+			case QUORUM_YIELD:
+			case QUORUM_RELEASE:
+				LinkedList<Outgoing> out = new LinkedList<Outgoing>();
+				handle(msg.type, msg.content, msg.clk, out);
+				flush(out);
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Handle a message of this protocol, which may come from this server itself.
+	 * @param type The type of message.
+	 * @param content The content of message.
+	 * @param clk The timestamp of message, whose pid is the sender.
+	 * @param out The messages to send after handling.
+	 */
+	private synchronized void handle(MessageType type, Serializable content, Clock clk, List<Outgoing> out){
+		int from = clk.pid;
+		switch(type){
+			case QUORUM_REQUEST:
+				if(votedFor == null)
+					vote(clk, out);
+				else{
+					queue.add(clk);
+					if(clk.compareTo(votedFor) < 0 && queue.first() == clk){
+						//It goes before the request voted for, ask that one to give the vote back.
+						if(!inquired){
+							inquired = true;
+							out.add(new Outgoing(votedFor.pid, MessageType.QUORUM_INQUIRE, votedFor.timestamp, null));
+						}
+					}else
+						out.add(new Outgoing(from, MessageType.QUORUM_FAILED, clk.timestamp, null));
+				}
+				break;
+				
+			case QUORUM_LOCKED:
+				long[] lock = (long[]) content;
+				if(request == null || request.timestamp != lock[0]) break;	//Outdated
+				granted.add(from);
+				if(lock[1] > grantVersion){
+					grantVersion = lock[1];
+					grantVersionPid = (int) lock[2];
+				}
+				notifyAll();
+				break;
+				
+			case QUORUM_FAILED:
+				if(request == null || request.timestamp != (Long) content) break;
+				failed = true;
+				for(int voter : inquiries)
+					giveBack(voter, out);
+				inquiries.clear();
+				break;
+				
+			case QUORUM_INQUIRE:
+				if(request == null || request.timestamp != (Long) content || inCS || !granted.contains(from)) break;	//The release will answer it
+				if(failed)
+					giveBack(from, out);
+				else
+					inquiries.add(from);	//It may still get all votes, answer later
+				break;
+				
+			case QUORUM_YIELD:
+				if(votedFor == null || votedFor.pid != from || votedFor.timestamp != (Long) content) break;
+				queue.add(votedFor);
+				votedFor = null;
+				vote(queue.pollFirst(), out);
+				break;
+				
+			case QUORUM_RELEASE:
+				long[] release = (long[]) content;
+				if(release[1] > version){
+					version = release[1];
+					versionPid = from;
+				}
+				if(votedFor != null && votedFor.pid == from && votedFor.timestamp == release[0]){
+					votedFor = null;
+					if(!queue.isEmpty())
+						vote(queue.pollFirst(), out);
+				}else{
+					Iterator<Clock> it = queue.iterator();
+					while(it.hasNext()){
+						Clock c = it.next();
+						if(c.pid == from && c.timestamp == release[0]) it.remove();
+					}
+				}
+				break;
+				
+			default:
+				break;
+		}
+	}
+	
+	/**
+	 * Vote for a request. The caller must hold the monitor of this object.
+	 * @param req The request.
+	 * @param out The messages to send.
+	 */
+	private void vote(Clock req, List<Outgoing> out){
+		votedFor = req;
+		inquired = false;
+		out.add(new Outgoing(req.pid, MessageType.QUORUM_LOCKED, new long[]{req.timestamp, version, versionPid}, null));
+	}
+	
+	/**
+	 * Give the vote of a voter back. The caller must hold the monitor of this object.
+	 * @param voter The pid of the voter.
+	 * @param out The messages to send.
+	 */
+	private void giveBack(int voter, List<Outgoing> out){
+		if(!granted.remove(voter)) return;
+		failed = true;
+		out.add(new Outgoing(voter, MessageType.QUORUM_YIELD, request.timestamp, null));
+	}
+	
+	/**
+	 * Send messages, delivering those to this server directly.
+	 * @param out The messages.
+	 */
+	private void flush(LinkedList<Outgoing> out){
+		while(!out.isEmpty()){
+			Outgoing o = out.poll();
+			Clock clk = o.clk == null? Server.updateClock(): o.clk;
+			if(o.to == Server.pid){
+				handle(o.type, o.content, clk, out);
+				continue;
+			}
+			Process p = Server.clusterInfo.get(o.to);
+			if(!p.live) continue;
+			try {
+				send(p, new Message(o.type, o.content, clk, section.name));
+			} catch (IOException e) {}	//onProcessDied will clean up.
+		}
+	}
+	
+	/**
+	 * Compute the quorum of this server over the live servers.
+	 * @return The pids of the quorum, including this server.
+	 */
+	private HashSet<Integer> quorum(){
+		ArrayList<Integer> live = new ArrayList<Integer>();
+		for(Process p : Server.clusterInfo.values())
+			if(p.live || p.pid == Server.pid)
+				live.add(p.pid);
+		Collections.sort(live);
+		int k = (int) Math.ceil(Math.sqrt(live.size()));	//The number of columns
+		int me = live.indexOf(Server.pid);
+		HashSet<Integer> ret = new HashSet<Integer>();
+		for(int i = 0; i < live.size(); i++)
+			if(i / k == me / k || i % k == me % k)
+				ret.add(live.get(i));
+		return ret;
+	}
+	
+	@Override
+	public void onProcessDied(Process process){
+		LinkedList<Outgoing> out = new LinkedList<Outgoing>();
+		synchronized(this){
+			//As a voter, forget its requests.
+			Iterator<Clock> it = queue.iterator();
+			while(it.hasNext())
+				if(it.next().pid == process.pid) it.remove();
+			if(votedFor != null && votedFor.pid == process.pid){
+				votedFor = null;
+				if(!queue.isEmpty())
+					vote(queue.pollFirst(), out);
+			}
+			//As a requester, stop waiting for it and ask the new members of the quorum.
+			asked.remove(process.pid);
+			granted.remove(process.pid);
+			inquiries.remove(process.pid);
+			if(request != null && !inCS){
+				quorum = quorum();
+				for(int member : quorum)
+					if(asked.add(member))
+						out.add(new Outgoing(member, MessageType.QUORUM_REQUEST, null, request));
+			}
+			notifyAll();
+		}
+		flush(out);
+	}
+	
+	@Override
+	public Serializable exportState(){
+		return null;	//A joining server starts with a free vote.
+	}
+	
+	@Override
+	public void importState(Serializable state){}
+}
@@ -0,0 +1,198 @@
+package server;
+
+import java.io.Serializable;
+import java.util.*;
+
+import message.*;
+
+/**
+ * RequestQueue is the queue of critical section requests of LamportMutualExclusion, ordered by their clocks. Adding and
+ * removing a request takes O(log n), and the first request and the first write request are kept aside, so whether a
+ * request may enter is known in O(1). A thread waiting for its request waits on a monitor of its own, and is only woken up
+ * when its request may enter, instead of all waiting threads on every change of the queue.
+ *
+ * A write request may enter when it is the first in the queue, a read request when no write request is before it. Once a
+ * request may enter, it stays so until it is removed: a request sent before it by another server has been received
+ * before that server acknowledged it.
+ *
+ * The methods are synchronized on the queue, which callers may also hold to make several calls at once.
+ *
+ */
+public class RequestQueue {
+
+	/**
+	 * A thread waiting for its request to enter.
+	 */
+	private static class Waiter{
+		private boolean ready = false;	//If the request may enter, guarded by this
+	}
+
+	private final TreeSet<Message> requests = new TreeSet<Message>();		//All requests
+	private final TreeSet<Message> writeRequests = new TreeSet<Message>();	//The write requests
+	private final HashMap<Integer, ArrayDeque<Message>> byPid = new HashMap<Integer, ArrayDeque<Message>>();	//The requests of every server in the order they were made
+	private final TreeMap<Message, Waiter> waiters = new TreeMap<Message, Waiter>();	//The requests being waited for
+	private Message first = null;		//The first request, null if there is none
+	private Message firstWrite = null;	//The first write request, null if there is none
+
+	/**
+	 * Add a request.
+	 * @param msg The request, CS_REQUEST_READ or CS_REQUEST_WRITE.
+	 */
+	public synchronized void add(Message msg){
+		requests.add(msg);
+		if(first == null || msg.compareTo(first) < 0)
+			first = msg;
+		if(msg.type == MessageType.CS_REQUEST_WRITE){
+			writeRequests.add(msg);
+			if(firstWrite == null || msg.compareTo(firstWrite) < 0)
+				firstWrite = msg;
+		}
+		ArrayDeque<Message> list = byPid.get(msg.clk.pid);
+		if(list == null) byPid.put(msg.clk.pid, list = new ArrayDeque<Message>());
+		list.add(msg);
+	}
+
+	/**
+	 * Return the oldest request of a server.
+	 * @param pid The pid of the server.
+	 * @return The request, null if it has none.
+	 */
+	public synchronized Message peek(int pid){
+		ArrayDeque<Message> list = byPid.get(pid);
+		return list == null? null: list.peekFirst();
+	}
+
+	/**
+	 * Remove the oldest request of a server, and wake up the threads whose request may enter then.
+	 * @param pid The pid of the server.
+	 * @return The request removed, null if it has none.
+	 */
+	public synchronized Message removeFirst(int pid){
+		ArrayDeque<Message> list = byPid.get(pid);
+		if(list == null) return null;
+		Message msg = list.pollFirst();
+		if(list.isEmpty())
+			byPid.remove(pid);
+		if(msg != null){
+			unlink(msg);
+			wakeUp();
+		}
+		return msg;
+	}
+
+	/**
+	 * Remove all requests of a server, and wake up the threads whose request may enter then.
+	 * @param pid The pid of the server.
+	 */
+	public synchronized void removeAll(int pid){
+		ArrayDeque<Message> list = byPid.remove(pid);
+		if(list == null) return;
+		for(Message msg : list)
+			unlink(msg);
+		wakeUp();
+	}
+
+	/**
+	 * Remove a request from the ordered sets. The caller must hold this.
+	 * @param msg The request.
+	 */
+	private void unlink(Message msg){
+		requests.remove(msg);
+		if(msg == first)
+			first = requests.isEmpty()? null: requests.first();
+		if(msg.type == MessageType.CS_REQUEST_WRITE){
+			writeRequests.remove(msg);
+			if(msg == firstWrite)
+				firstWrite = writeRequests.isEmpty()? null: writeRequests.first();
+		}
+	}
+
+	/**
+	 * Return whether a request may enter. The caller must hold this.
+	 * @param msg The request.
+	 * @return True if it may enter.
+	 */
+	private boolean mayEnter(Message msg){
+		if(msg.type == MessageType.CS_REQUEST_WRITE)
+			return first == msg;
+		return firstWrite == null || firstWrite.compareTo(msg) > 0;
+	}
+
+	/**
+	 * Wake up the threads whose request may enter. Only the requests before the first write request can. The caller must
+	 * hold this.
+	 */
+	private void wakeUp(){
+		if(waiters.isEmpty()) return;
+		Iterator<Map.Entry<Message, Waiter>> it = (firstWrite == null? waiters: waiters.headMap(firstWrite, true)).entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Message, Waiter> entry = it.next();
+			if(!mayEnter(entry.getKey())) continue;
+			it.remove();
+			Waiter w = entry.getValue();
+			synchronized(w){
+				w.ready = true;
+				w.notify();
+			}
+		}
+	}
+
+	/**
+	 * Block until a request in the queue may enter.
+	 * @param msg The request.
+	 */
+	public void await(Message msg){
+		Waiter w = new Waiter();
+		synchronized(this){
+			if(mayEnter(msg)) return;
+			waiters.put(msg, w);
+		}
+		synchronized(w){
+			while(!w.ready)
+				try {
+					w.wait();
+				} catch (InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * Return the number of requests queued.
+	 * @return The number of requests and of write requests.
+	 */
+	public synchronized int[] depth(){
+		return new int[]{requests.size(), writeRequests.size()};
+	}
+	
+	/**
+	 * Return a copy of the queue, to be sent to a joining server.
+	 * @return The copy.
+	 */
+	public synchronized Serializable export(){
+		HashMap<String, Serializable> data = new HashMap<String, Serializable>();
+		data.put("requests", new TreeSet<Message>(requests));
+		data.put("writeRequests", new TreeSet<Message>(writeRequests));
+		HashMap<Integer, LinkedList<Message>> map = new HashMap<Integer, LinkedList<Message>>();
+		for(Map.Entry<Integer, ArrayDeque<Message>> entry : byPid.entrySet())
+			map.put(entry.getKey(), new LinkedList<Message>(entry.getValue()));
+		data.put("requestsMap", map);
+		return data;
+	}
+
+	/**
+	 * Replace the queue with a copy exported by another server.
+	 * @param state The copy.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void load(Serializable state){
+		HashMap<String, Serializable> data = (HashMap<String, Serializable>) state;
+		assert(data.get("requestsMap") != null);
+		requests.clear();
+		writeRequests.clear();
+		byPid.clear();
+		first = firstWrite = null;
+		for(LinkedList<Message> list : ((HashMap<Integer, LinkedList<Message>>) data.get("requestsMap")).values())
+			for(Message msg : list)
+				add(msg);	//The sets are rebuilt from the lists, so the copies of a request are the same object.
+		wakeUp();
+	}
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.*;
+
+/**
+ * SeatEscrow is the quota of empty seats that a server may hand out without asking other servers. Quotas of different
+ * servers never overlap, so a reservation served from the local quota needs no distributed lock.
+ *
+ */
+public class SeatEscrow {
+
+	private final Stack<Integer> seats = new Stack<Integer>();	//The seats in this quota.
+	
+	/**
+	 * Take some seats out of the quota.
+	 * @param count The number of seats.
+	 * @return The seats, or null if the quota has less than count seats.
+	 */
+	public synchronized HashSet<Integer> take(int count){
+		if(count > seats.size()) return null;
+		HashSet<Integer> ret = new HashSet<Integer>();
+		while(count-- > 0)
+			ret.add(seats.pop());
+		return ret;
+	}
+	
+	/**
+	 * Give seats to another server which is short of seats. At least half of the quota is kept unless more is needed.
+	 * @param needed The number of seats the other server needs.
+	 * @return The seats given away, which may be less than needed.
+	 */
+	public synchronized HashSet<Integer> grant(int needed){
+		return take(Math.min(seats.size(), Math.max(needed, seats.size()/2)));
+	}
+	
+	/**
+	 * Put seats into the quota.
+	 * @param c The seats.
+	 */
+	public synchronized void add(Collection<Integer> c){
+		seats.addAll(c);
+	}
+	
+	/**
+	 * Return the number of seats in the quota.
+	 * @return The number of seats.
+	 */
+	public synchronized int size(){
+		return seats.size();
+	}
+	
+	/**
+	 * Return a copy of the seats in the quota.
+	 * @return The seats.
+	 */
+	public synchronized HashSet<Integer> seats(){
+		return new HashSet<Integer>(seats);
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return seats.size() + " seats";
+	}
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * SeatMap keeps which seats of a theater are empty in a bitmap, one bit per seat. Seats are numbered from 1.
+ *
+ */
+public class SeatMap implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+	private final int size;		//The number of seats.
+	private final long[] free;	//Bit (i-1) is set if seat i is empty.
+	private int freeCount;		//The number of empty seats.
+	
+	/**
+	 * Create a seat map with all seats empty.
+	 * @param size The number of seats.
+	 */
+	public SeatMap(int size){
+		this.size = size;
+		free = new long[(size + 63) >>> 6];
+		for(int i = 0; i < size >>> 6; i++)
+			free[i] = -1L;
+		if((size & 63) != 0)
+			free[size >>> 6] = (1L << (size & 63)) - 1;
+		freeCount = size;
+	}
+	
+	/**
+	 * Create a copy of a seat map.
+	 * @param other The seat map.
+	 */
+	public SeatMap(SeatMap other){
+		size = other.size;
+		free = other.free.clone();
+		freeCount = other.freeCount;
+	}
+	
+	/**
+	 * Return the number of seats.
+	 * @return The number of seats.
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * Return the number of empty seats.
+	 * @return The number of empty seats.
+	 */
+	public int freeCount(){
+		return freeCount;
+	}
+	
+	/**
+	 * Check if a seat is empty.
+	 * @param seat The seat number.
+	 * @return True if it is empty.
+	 */
+	public boolean isFree(int seat){
+		int i = seat - 1;
+		return (free[i >>> 6] & (1L << i)) != 0;
+	}
+	
+	/**
+	 * Take empty seats, the highest numbered first.
+	 * @param count The number of seats.
+	 * @return The seats taken, or null if there are less than count empty seats.
+	 */
+	public int[] take(int count){
+		if(count > freeCount) return null;
+		int[] ret = new int[count];
+		int n = 0;
+		for(int w = free.length - 1; w >= 0 && n < count; w--){
+			while(free[w] != 0 && n < count){
+				int bit = 63 - Long.numberOfLeadingZeros(free[w]);
+				free[w] &= ~(1L << bit);
+				ret[n++] = (w << 6) + bit + 1;
+			}
+		}
+		freeCount -= count;
+		return ret;
+	}
+	
+	/**
+	 * Mark a seat as taken.
+	 * @param seat The seat number.
+	 */
+	public void occupy(int seat){
+		int i = seat - 1;
+		if((free[i >>> 6] & (1L << i)) != 0){
+			free[i >>> 6] &= ~(1L << i);
+			freeCount--;
+		}
+	}
+	
+	/**
+	 * Mark a seat as empty.
+	 * @param seat The seat number.
+	 */
+	public void release(int seat){
+		int i = seat - 1;
+		if((free[i >>> 6] & (1L << i)) == 0){
+			free[i >>> 6] |= 1L << i;
+			freeCount++;
+		}
+	}
+	
+	/**
+	 * Return the empty seats.
+	 * @return The seat numbers, in increasing order.
+	 */
+	public int[] freeSeats(){
+		int[] ret = new int[freeCount];
+		int n = 0;
+		for(int w = 0; w < free.length; w++){
+			long bits = free[w];
+			while(bits != 0){
+				int bit = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				ret[n++] = (w << 6) + bit + 1;
+			}
+		}
+		return ret;
+	}
+}
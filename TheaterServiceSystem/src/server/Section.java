@@ -0,0 +1,445 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+import message.*;
+
+/**
+ * Section is a named part of the theater, such as the orchestra or the balcony. Every section has its own seats, its own
+ * instance of the mutual exclusion protocol and its own replication state, so writes to different sections do not wait
+ * for each other anywhere in the cluster. Every server must define the same sections. A show created at runtime is a
+ * section too (see Server.createShow), and is kept as a tombstone once dropped, so the protocol messages still in flight
+ * about it are handled.
+ *
+ */
+public class Section {
+
+	/**
+	 * A client write request waiting to be applied in a batch.
+	 */
+	static class PendingWrite{
+		public final Message msg;		//The client request
+		public final Process process;	//The client who sent the request
+
+		public PendingWrite(Message msg, Process process){
+			this.msg = msg;
+			this.process = process;
+		}
+	}
+
+	public final String name;		//The name of this section
+	public final int seats;			//The number of seats
+	volatile boolean dropped = false;	//If this section is a show which has been dropped, so no client request is served.
+	volatile TheaterService service;	//The seats of this section
+	MutualExclusion mutex;			//The mutual exclusion protocol guarding the service
+
+	//Write batching
+	final LinkedList<PendingWrite> pendingWrites = new LinkedList<PendingWrite>();	//Writes waiting for the next cs round
+	boolean batchInFlight = false;	//If a thread is currently running cs rounds for pending writes.
+
+	//Replication
+	private final Object replication_lock = new Object();	//Lock of the two fields below
+	private Process snapshotSource = null;	//The server a full snapshot is requested from, null if the local service is up to date.
+	private final TreeMap<Long, TheaterUpdate> pendingUpdates = new TreeMap<Long, TheaterUpdate>();	//Updates received while waiting for a snapshot, by base version.
+	private ByteArrayOutputStream transfer = null;	//The chunks of a copy received while joining, null if none is expected. Guarded by replication_lock.
+	private long lastChunk = 0;	//The time the last chunk was received(ms), guarded by replication_lock.
+	private ArrayList<TheaterUpdate.Operation> heldReservations = null;	//The escrow reservations received while joining, null if not joining. Guarded by replication_lock.
+	
+	private final WeakHashMap<Process, TheaterService> lent = new WeakHashMap<Process, TheaterService>();	//The copies sent to joining servers, guarded by itself.
+	
+	static final int CHUNK_SIZE = 64 * 1024;	//The size of the chunks a copy of the service is sent in.
+
+	//Durability
+	private WriteAheadLog log = null;	//The log of the changes of the service, null if it is not kept on disk.
+
+	//Escrow
+	SeatEscrow escrow = null;	//The seats this server may reserve without a distributed lock, null if escrow is disabled.
+	final Semaphore borrow_lock = new Semaphore(1);	//Lock to ensure that only one thread borrows or reclaims seats
+
+	/**
+	 * Create a section with all seats empty.
+	 * @param name The name of the section.
+	 * @param numOfSeats The number of seats.
+	 */
+	public Section(String name, int numOfSeats){
+		this.name = name;
+		this.seats = numOfSeats;
+		service = new TheaterService(numOfSeats);
+	}
+
+	/**
+	 * Keep the seats of this section on disk, starting from what is already there.
+	 * @param dir The directory of the section.
+	 * @throws IOException If the files cannot be read or written.
+	 */
+	void recover(File dir) throws IOException{
+		log = new WriteAheadLog(dir);
+		service = log.recover(service);
+	}
+
+	/**
+	 * Replace the service with one received from another server. It is written as a checkpoint if the section is kept on
+	 * disk.
+	 * @param s The service.
+	 */
+	void setService(TheaterService s){
+		if(log != null)
+			try {
+				log.attach(s);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		service = s;
+	}
+
+	/**
+	 * Create a message about this section, timestamped with a new clock.
+	 * @param type The type of message.
+	 * @param content The content.
+	 * @return The message.
+	 */
+	Message message(MessageType type, Serializable content){
+		return new Message(type, content, Server.updateClock(), name);
+	}
+
+	/**
+	 * Check if a message is about this section.
+	 * @param msg The message.
+	 * @return True if it is.
+	 */
+	boolean owns(Message msg){
+		return name.equals(msg.section);
+	}
+
+	/**
+	 * Bring the local theater service up to date with the state carried by a CS_RELEASE message, which is either a whole
+	 * TheaterService or a TheaterUpdate. If an update cannot be applied because some versions are missing, the local service
+	 * is marked as outdated until a full snapshot is installed.
+	 * @param state The state.
+	 * @param from The server who sent the state.
+	 * @return True if a snapshot should be requested from the sender.
+	 */
+	boolean onReplicatedState(Serializable state, Process from){
+		if(state == null) return false;
+		synchronized(replication_lock){
+			if(state instanceof TheaterService){
+				installSnapshot((TheaterService) state);
+				return false;
+			}
+			TheaterUpdate update = (TheaterUpdate) state;
+			if(snapshotSource == null && service.apply(update)){
+				replication_lock.notifyAll();
+				return false;
+			}
+			System.out.println("Missing updates of "+name+" before version "+update.baseVersion+", local version is "+service.version());
+			pendingUpdates.put(update.baseVersion, update);
+			if(snapshotSource != null) return false;	//Already waiting for a snapshot
+			snapshotSource = from;
+			return true;
+		}
+	}
+
+	/**
+	 * Install a snapshot of the theater service, then apply the updates received while waiting for it. If no update is
+	 * missing afterwards, the local service becomes up to date. The caller must hold replication_lock.
+	 * @param state Either a full snapshot, installed if it is newer than the local service, or only the operations the
+	 * local service misses (see SERVER_SNAPSHOT_REQUEST).
+	 */
+	private void installSnapshot(Serializable state){
+		if(state instanceof TheaterUpdate){
+			TheaterUpdate tail = (TheaterUpdate) state;
+			pendingUpdates.put(tail.baseVersion, tail);
+		}else{
+			TheaterService snapshot = (TheaterService) state;
+			if(snapshot.version() >= service.version()){
+				if(escrow != null)
+					snapshot.keep(service);	//The sender may not have received every escrow reservation yet.
+				setService(snapshot);
+			}
+		}
+		replication_lock.notifyAll();
+		while(!pendingUpdates.isEmpty()){
+			TheaterUpdate update = pendingUpdates.firstEntry().getValue();
+			if(!service.apply(update)) break;
+			pendingUpdates.pollFirstEntry();
+		}
+		if(pendingUpdates.isEmpty())
+			snapshotSource = null;
+	}
+
+	/**
+	 * Install a snapshot answering a SERVER_SNAPSHOT_REQUEST, and ask again if some updates are still missing.
+	 * @param snapshot The snapshot, or the operations the local service misses.
+	 * @param from The server who sent it.
+	 */
+	void onSnapshot(Serializable snapshot, Process from){
+		Process source = null;
+		synchronized(replication_lock){
+			if(snapshotSource != from) return;	//Not requested, or already up to date.
+			installSnapshot(snapshot);
+			source = snapshotSource;	//Still missing some updates if not null.
+		}
+		if(source != null)
+			sendSnapshotRequest(source);
+	}
+
+	/**
+	 * Ask a server for a snapshot of its theater service. The request carries the version and digest of the local service,
+	 * so that only the operations it misses are sent back if the server still keeps them.
+	 * @param p The server.
+	 */
+	void sendSnapshotRequest(Process p){
+		p.message_event_lock();
+		try{
+			p.sendMessage(message(MessageType.SERVER_SNAPSHOT_REQUEST, service.position()));
+		}catch(IOException e){}	//If it is dead, onProcessDied will ask another server.
+		p.message_event_unlock();
+	}
+
+	/**
+	 * Send a copy of the service to a joining server in chunks, without any lock, unless the joiner can catch up with the
+	 * operations kept in the history of the service. The writes made while the chunks are sent reach the joiner later,
+	 * under the critical section (see SERVER_SYNC_DATA).
+	 * @param p The joining server.
+	 * @param position The version and digest of the service of the joiner.
+	 * @throws IOException If there is an error when sending.
+	 */
+	void sendCopy(Process p, long[] position) throws IOException{
+		TheaterService s = service;
+		byte[] bytes = new byte[0];
+		long version = s.version();
+		//Escrow reservations do not change the version, so the whole service is sent under the lock anyway.
+		if(escrow == null && s.tailAfter(position[0], position[1]) == null){
+			TheaterService copy = s.copy();
+			synchronized(lent){	//Kept to send the joiner what changed since, see catchUp().
+				lent.put(p, copy);
+			}
+			version = copy.version();
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(CHUNK_SIZE);
+			ObjectOutputStream out = new ObjectOutputStream(buf);
+			out.writeObject(copy);
+			out.close();
+			bytes = buf.toByteArray();
+		}
+		int offset = 0;
+		do{
+			int length = Math.min(CHUNK_SIZE, bytes.length - offset);
+			SnapshotChunk chunk = new SnapshotChunk(version, offset, bytes.length, Arrays.copyOfRange(bytes, offset, offset + length));
+			p.message_event_lock();
+			try{
+				p.sendMessage(message(MessageType.SERVER_SYNC_SNAPSHOT_CHUNK, chunk));
+			}finally{
+				p.message_event_unlock();
+			}
+			offset += length;
+		}while(offset < bytes.length);
+		System.out.println("Sent a copy of "+name+" at version "+version+" ("+bytes.length+" bytes) to pid="+p.pid);
+	}
+
+	/**
+	 * Return the writes a joining server misses, which is called under the critical section of this section. They are
+	 * found in the history of the service, or by comparing the service with the copy sent to the joiner.
+	 * @param p The joining server.
+	 * @param position The version and digest of the service of the joiner.
+	 * @return The update, or null if the whole service must be sent.
+	 */
+	TheaterUpdate catchUp(Process p, long[] position){
+		TheaterService copy;
+		synchronized(lent){
+			copy = lent.remove(p);
+		}
+		if(escrow != null)
+			return null;	//Escrow reservations do not change the version, the update cannot be trusted.
+		TheaterUpdate tail = service.tailAfter(position[0], position[1]);
+		if(tail == null && copy != null && Arrays.equals(copy.position(), position))
+			tail = service.diffFrom(copy);
+		return tail;
+	}
+
+	/**
+	 * Expect a copy of the service from another server, see sendCopy().
+	 */
+	void expectCopy(){
+		synchronized(replication_lock){
+			transfer = new ByteArrayOutputStream(CHUNK_SIZE);
+			lastChunk = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Receive a chunk of a copy of the service. Once every chunk is received, the copy replaces the local service.
+	 * @param chunk The chunk.
+	 */
+	void onCopyChunk(SnapshotChunk chunk){
+		synchronized(replication_lock){
+			if(transfer == null) return;	//Not expected
+			lastChunk = System.currentTimeMillis();
+			if(chunk.offset != transfer.size()){
+				System.out.println("Chunk "+chunk+" of "+name+" out of order, the copy is dropped");
+				transfer = null;
+				replication_lock.notifyAll();
+				return;
+			}
+			transfer.write(chunk.data, 0, chunk.data.length);
+			if(transfer.size() < chunk.total) return;
+			if(chunk.total > 0){
+				try {
+					ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(transfer.toByteArray()));
+					setService((TheaterService) in.readObject());
+					System.out.println("Received a copy of "+name+" at version "+chunk.version+" ("+chunk.total+" bytes)");
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (ClassNotFoundException e) {
+					e.printStackTrace();
+				}
+			}
+			transfer = null;
+			replication_lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Keep the escrow reservations received from now on, until releaseReservations(). The state this server receives
+	 * when it joins may be taken before they reach the server sending it.
+	 */
+	void holdReservations(){
+		synchronized(replication_lock){
+			heldReservations = new ArrayList<TheaterUpdate.Operation>();
+		}
+	}
+
+	/**
+	 * Apply escrow reservations made by another server.
+	 * @param ops The reservations.
+	 */
+	void onReservations(List<TheaterUpdate.Operation> ops){
+		synchronized(replication_lock){	//So that none is lost while the service is replaced
+			if(heldReservations != null)
+				heldReservations.addAll(ops);
+			for(TheaterUpdate.Operation op : ops)
+				service.merge(op);
+		}
+	}
+
+	/**
+	 * Merge the escrow reservations held since holdReservations() again into the service installed since, on the seats
+	 * which are empty in it, except those deleted meanwhile. If the deletions are not known, because the server which sent
+	 * the state no longer keeps them, a reservation deleted during the join comes back; a seat is never given twice.
+	 * @param deleted The deletions made since the reservations were held, null if not known.
+	 */
+	void releaseReservations(List<TheaterUpdate.Operation> deleted){
+		synchronized(replication_lock){
+			if(heldReservations == null) return;
+			int merged = 0;
+			for(TheaterUpdate.Operation op : heldReservations){
+				boolean gone = false;
+				if(deleted != null)
+					for(TheaterUpdate.Operation d : deleted)
+						if(d.name.equals(op.name) && !Collections.disjoint(d.seats, op.seats))
+							gone = true;
+				if(!gone){
+					service.mergeEmpty(op);
+					merged++;
+				}
+			}
+			System.out.println("Merged "+merged+" of "+heldReservations.size()+" escrow reservations of "+name+" received while joining");
+			heldReservations = null;
+		}
+	}
+
+	/**
+	 * Block until the copy expected is received, or no chunk has been received for MAX_RESPONSE_TIME.
+	 * @return True if the copy is received or not needed.
+	 */
+	boolean awaitCopy(){
+		synchronized(replication_lock){
+			while(transfer != null){
+				long left = lastChunk + Server.MAX_RESPONSE_TIME - System.currentTimeMillis();
+				if(left <= 0){
+					transfer = null;
+					return false;
+				}
+				try {
+					replication_lock.wait(left);
+				} catch (InterruptedException e) {}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Block until the local theater service reaches a version, which is known to be released by another server. If it is
+	 * not reached in time, a full snapshot is requested.
+	 * @param version The version.
+	 * @param from The server who released the version.
+	 */
+	void awaitVersion(long version, Process from){
+		Process source = null;
+		synchronized(replication_lock){
+			long deadline = System.currentTimeMillis() + Server.MAX_RESPONSE_TIME;
+			while(snapshotSource == null && service.version() < version){
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0){
+					System.out.println("Version "+version+" of "+name+" not received, local version is "+service.version());
+					snapshotSource = source = (from != null && from.live)? from: Server.anyLivePeer();
+					if(source == null) pendingUpdates.clear();	//Nobody else to ask
+					break;
+				}
+				try {
+					replication_lock.wait(left);
+				} catch (InterruptedException e) {}
+			}
+		}
+		if(source != null)
+			sendSnapshotRequest(source);
+		awaitFreshState();
+	}
+
+	/**
+	 * Return the version of the local theater service.
+	 * @return The version.
+	 */
+	long version(){
+		return service.version();
+	}
+
+	/**
+	 * Block until the local theater service is not waiting for a snapshot.
+	 */
+	void awaitFreshState(){
+		synchronized(replication_lock){
+			while(snapshotSource != null)
+				try {
+					replication_lock.wait();
+				} catch (InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * Clear the state of a died process. If we were waiting for a snapshot from it, another server is asked.
+	 * @param process The died process.
+	 */
+	void onProcessDied(Process process){
+		if(mutex != null)
+			mutex.onProcessDied(process);
+		Process source = null;
+		synchronized(replication_lock){
+			if(snapshotSource == process){
+				snapshotSource = source = Server.anyLivePeer();
+				if(source == null){	//Nobody else to ask, the local service is the best we have.
+					pendingUpdates.clear();
+					replication_lock.notifyAll();
+				}
+			}
+		}
+		if(source != null)
+			sendSnapshotRequest(source);
+	}
+
+	@Override
+	public String toString(){
+		return name;
+	}
+}
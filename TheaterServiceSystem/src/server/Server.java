@@ -2,9 +2,13 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import exceptions.NoEnoughSeatsException;
 import exceptions.NoReservationInfoException;
@@ -16,39 +20,48 @@ import message.*;
  */
 public class Server {
 	
-	private static Clock clock; //The Lamport's logical clock.
-	private static int pid;		//The pid of current process.
-	private static final HashMap<Integer, Process> clusterInfo = new HashMap<Integer, Process>(); //Pid to every srever's process in the cluster.
+	private static LogicalClock clock; //The Lamport's logical clock.
+	static int pid;		//The pid of current process.
+	static final HashMap<Integer, Process> clusterInfo = new HashMap<Integer, Process>(); //Pid to every srever's process in the cluster.
 
-	private static TreeSet<Message> requests = new TreeSet<Message>();		  //The queue of waiting requests
-	private static TreeSet<Message> writeRequests = new TreeSet<Message>();	  		//The queue of waiting write requests
-	private static HashMap<Integer, LinkedList<Message>> requestsMap = new HashMap<Integer, LinkedList<Message>>(); //From pid to a request
-	private static TheaterService service;	//The theater service object
+	private static String mutexType = "lamport";	//The name of the mutual exclusion protocol to use.
+	private static volatile LinkedHashMap<String, Section> sections = new LinkedHashMap<String, Section>();	//Name to every section and show of the theater, in the order they are created. Replaced by a new map when a show is created, never modified.
+	private static final Object shows_lock = new Object();	//Lock to replace sections
+	private static Section defaultSection;	//The section of client requests which do not name one, the first defined.
 
-	private static final int MAX_RESPONSE_TIME = 5000;	//The maximum response time of this system.
+	static final int MAX_RESPONSE_TIME = 5000;	//The maximum response time of this system.
+	static volatile boolean ready = false;	//If this server has finished synchronization and joined the cluster.
 	
-	//Synchronization locks
-	private static Object clock_lock = new Object();	//clock access mutex lock
-	private static final int MAX_READER_IN_A_SERVER = 20;	//Maximum number of concurent readers in each server.
-	private static Semaphore read_write_lock = new Semaphore(MAX_READER_IN_A_SERVER);	//The read-write lock
-	private static Semaphore cs_lock = new Semaphore(1);	//Lock to ensure that only one thread can call requestCS
+	private static boolean batchWrites = false;	//If true, writes arriving during a cs round are applied together in the next round.
+	private static boolean linearizableReads = false;	//If true, searches enter the critical section instead of reading a local snapshot.
+	private static boolean deltaReplication = false;	//If true, CS_RELEASE carries only the operations applied instead of the whole service.
+	private static boolean useEscrow = false;	//If true, each section keeps a quota of seats this server may reserve without a distributed lock.
+	private static File walDir = null;	//The directory the write-ahead logs are kept in, null if the seats are not kept on disk.
+	private static int nioThreads = 0;	//The number of event loop threads of the NIO transport, 0 to use a blocking thread per connection.
+	private static final HashMap<Integer, Process> joiners = new HashMap<Integer, Process>();	//Pid to the connection of every server joining, which is sent the escrow reservations. Guarded by itself.
+	private static final AtomicInteger clientRequests = new AtomicInteger();	//The client requests received and not answered yet, reported to PING.
+	private static final EnumSet<MessageType> CLIENT_REQUESTS = EnumSet.of(MessageType.RESERVE_SEAT, MessageType.DELETE_SEAT,
+			MessageType.SEARCH_SEAT, MessageType.GROUP_RESERVE, MessageType.CREATE_SHOW, MessageType.DROP_SHOW);	//The requests a client is answered to
+	private static int metricsPeriod = 0;	//The period(s) the metrics are printed at, 0 if they are not printed.
 	
-	/**
-	 *A thread that is good for synchronization
-	 */
-	private static class mThread extends Thread{
-		public Semaphore m = new Semaphore(0);
-	}
+	private static final int CLIENT_WORKERS = 32;	//The number of threads handling client requests with an id
+	private static final ExecutorService clientWorkers = Executors.newFixedThreadPool(CLIENT_WORKERS, new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "client-worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});	//Handles the client requests with an id, so that the requests of a connection are handled concurrently.
 	
 	/**
 	 * Initialize the server process with an info file.
 	 * @param infoFile The file where ips and ports are defined.
+	 * @param sectionSeats The name and number of seats of every section.
 	 * @throws IOException If there is an error when reading the file.
 	 */
 
-	private static void init(String path, int maxNumOfSeates) throws IOException, FileNotFoundException{
-		service  = new TheaterService(maxNumOfSeates);
-		
+	private static void init(String path, LinkedHashMap<String, Integer> sectionSeats) throws IOException, FileNotFoundException{
 		//Read the cluster information from a file.
 		int id = 0;
 
@@ -64,6 +77,9 @@ public class Server {
 		}
 		reader.close();
 		
+		if(nioThreads > 0)
+			NioTransport.start(nioThreads);	//Before connecting to other servers, so that those connections use it too.
+		
 		//Get my pid.
 		ServerSocket serversocket = null;
 		System.out.println("My IP adress is: "+InetAddress.getLocalHost().getHostAddress());
@@ -71,58 +87,82 @@ public class Server {
 			if(process.ip.equals(InetAddress.getLocalHost().getHostAddress()))
 				
 				try{
-					serversocket = new ServerSocket(process.port);
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					try{
+						channel.socket().bind(new InetSocketAddress(process.port));
+					}catch(IOException e){
+						channel.close();
+						throw e;
+					}
+					serversocket = channel.socket();
 					pid = process.pid;
 					break;
 				}catch(IOException e){}
 		
 		if(serversocket == null)
 			throw new IOException("Unable to find available port!");
-		clock = new Clock(0, pid);	//Then initialize my clock
+		clock = new LogicalClock(pid);	//Then initialize my clock
 		System.out.println("This server got pid "+pid);
+		Metrics.register(pid);
+		if(metricsPeriod > 0)
+			Metrics.startDump(metricsPeriod);
+		for(Entry<String, Integer> entry : sectionSeats.entrySet())	//Every section is locked independently
+			addSection(newSection(entry.getKey(), entry.getValue()));
+		defaultSection = sections.values().iterator().next();
+		if(walDir != null)
+			loadShows();	//The shows created before this server stopped
 		
 		
 		//Try to find out if some servers are dead, and synchronize seate information
-		HashMap<Process, mThread> threads = new HashMap<Process, mThread>();
+		for(Section section : sections.values())
+			if(section.escrow != null)
+				section.holdReservations();	//Escrow reservations are sent to this server from SERVER_SYNC_START on.
+		final HashMap<String, Long> since = new HashMap<String, Long>();	//The lowest version of every section the other servers had then
+		ArrayList<Thread> threads = new ArrayList<Thread>();
 		for(Process process : clusterInfo.values()){
 			if(process.pid == pid) continue;		
 			final Process p = process;
-			threads.put(p, new mThread(){	//Create new thread to wait for response
+			Thread t = new Thread(){	//Connect to every server at the same time
 				@Override public void run(){
 					try {
 						p.connect();	//Try to connect to a server
-						Message msg = p.waitMessage(new MessageFilter(){
+						//Expect the response before sending SERVER_SYNC_START, so that it cannot be missed.
+						MessageFuture response = p.expectMessage(new MessageFilter(){
 							@Override
 							public boolean filt(Message m) {
 								return m.type == MessageType.SERVER_SYNC_RESPONSE && m.clk.pid == p.pid;
 							}	
-						}, MAX_RESPONSE_TIME);	//Wait for p's response
+						}, MAX_RESPONSE_TIME);
+						p.message_event_lock();
+						try{
+							p.sendMessage(new Message(MessageType.SERVER_SYNC_START, null, updateClock()));
+						}finally{
+							p.message_event_unlock();
+						}
+						Message msg = response.get();	//Wait for p's response
 						assert(msg.type == MessageType.SERVER_SYNC_RESPONSE);
+						if(msg.content != null){
+							@SuppressWarnings("unchecked")
+							HashMap<String, Long> versions = (HashMap<String, Long>) msg.content;
+							synchronized(since){
+								for(Entry<String, Long> entry : versions.entrySet())
+									if(!since.containsKey(entry.getKey()) || entry.getValue() < since.get(entry.getKey()))
+										since.put(entry.getKey(), entry.getValue());
+							}
+						}
 					} catch (IOException e) {
 						onProcessDied(p);
 					}
-					m.release();
 				}
-			});
-			threads.get(p).start();
-		}
-		
-		//Start synchronization, send SERVER_SYNC_START message
-		for(Entry<Process, mThread> entry : threads.entrySet()){
-			while(entry.getKey().live && entry.getValue().getState() != Thread.State.WAITING); //Wait until thread starts waiting
-			if(entry.getKey().live){
-				entry.getKey().message_event_lock();
-				try{
-					entry.getKey().sendMessage(new Message(MessageType.SERVER_SYNC_START, null, updateClock()));
-				}catch(IOException e){}
-				entry.getKey().message_event_unlock();
-			}
+			};
+			threads.add(t);
+			t.start();
 		}
 
 		//Wait until all processes have responded
-		for(mThread thread : threads.values())
+		for(Thread thread : threads)
 			try {
-				thread.m.acquire();
+				thread.join();
 			} catch (InterruptedException e1) {
 				e1.printStackTrace();
 			}
@@ -131,51 +171,93 @@ public class Server {
 		for(Process process : clusterInfo.values()){
 			if(!process.live || process.pid == pid) continue;
 			final Process p = process;
-			mThread waitThread = new mThread(){
-				@SuppressWarnings("unchecked")
-				@Override
-				public void run(){
-					Message msg;
-					try {
-						msg = p.waitMessage(new MessageFilter(){
-							@Override
-							public boolean filt(Message m) {
-								return m.type == MessageType.SERVER_SYNC_RESPONSE && m.clk.pid == p.pid;
-							}	
-						}, MAX_RESPONSE_TIME);
-						assert(msg.type == MessageType.SERVER_SYNC_RESPONSE);
-						assert(msg.content != null);
-						HashMap<String, Serializable> data = (HashMap<String, Serializable>) msg.content;
-						service = (TheaterService) data.get("service");
-						requests = (TreeSet<Message>) data.get("requests");
-						writeRequests = (TreeSet<Message>) data.get("writeRequests");
-						requestsMap	= (HashMap<Integer, LinkedList<Message>>) data.get("requestsMap");
-						assert(service != null);
-						assert(requests != null);
-						assert(writeRequests != null);
-						assert(requestsMap != null);
-					} catch (IOException e) {
-						onProcessDied(p);
+			try {
+				//Copy every section without any lock first, so that only the writes made meanwhile are sent under the lock.
+				for(Section section : sections.values()){
+					section.expectCopy();
+					p.message_event_lock();
+					try{
+						p.sendMessage(section.message(MessageType.SERVER_SYNC_SNAPSHOT_REQUEST, section.service.position()));
+					}finally{
+						p.message_event_unlock();
+					}
+				}
+				for(Section section : sections.values())
+					if(!section.awaitCopy())
+						System.out.println("No copy of "+section+" received, it is sent under the lock");
+				HashMap<String, long[]> positions = new HashMap<String, long[]>();	//The version and digest of every section
+				for(Section section : sections.values()){
+					long[] position = section.service.position();
+					Long from = since.get(section.name);	//The deletions after it are needed to merge the reservations held
+					positions.put(section.name, from == null? position: new long[]{position[0], position[1], from});
+				}
+				//Expect the response before sending the request, so that it cannot be missed.
+				MessageFuture response = p.expectMessage(new MessageFilter(){
+					@Override
+					public boolean filt(Message m) {
+						return m.type == MessageType.SERVER_SYNC_RESPONSE && m.clk.pid == p.pid;
 					}	
-					m.release();
+				}, MAX_RESPONSE_TIME);
+				p.message_event_lock();
+				try{
+					p.sendMessage(new Message(MessageType.SERVER_SYNC_DATA, positions, updateClock()));	//Request sync data.
+				}finally{
+					p.message_event_unlock();
 				}
-			};
-			waitThread.start();
-			while(p.live && waitThread.getState() == Thread.State.WAITING); // Wait until waitThread starts waiting
-			p.message_event_lock();
-			try{
-				p.sendMessage(new Message(MessageType.SERVER_SYNC_DATA, null, updateClock()));	//Request sync data.
-			}catch(IOException e){}
-			p.message_event_unlock();
-			try {
-				waitThread.m.acquire();	// Wait until thread ends
-			} catch (InterruptedException e) {} 
+				Message msg = response.get();
+				assert(msg.content != null);
+				@SuppressWarnings("unchecked")
+				HashMap<String, HashMap<String, Serializable>> data = (HashMap<String, HashMap<String, Serializable>>) msg.content;
+				for(Section section : sections.values())
+					assert(data.containsKey(section.name));	//Every server must define the same sections.
+				for(Entry<String, HashMap<String, Serializable>> entry : data.entrySet()){	//In the order the sections were created
+					HashMap<String, Serializable> state = entry.getValue();
+					Section section = sections.get(entry.getKey());
+					if(section == null){	//A show created while this server was not running
+						section = newSection(entry.getKey(), (Integer) state.get("seats"));
+						addSection(section);
+						recordShow("create "+section.name+" "+section.seats);
+					}
+					if(Boolean.TRUE.equals(state.get("dropped")) && !section.dropped){
+						section.dropped = true;
+						recordShow("drop "+section.name);
+					}
+					TheaterUpdate tail = (TheaterUpdate) state.get("update");
+					if(tail != null && section.service.apply(tail))	//Only the writes missed while down
+						System.out.println("Synchronized "+section+" with "+tail.operations.size()+" operations up to version "+tail.version);
+					else
+						section.setService((TheaterService) state.get("service"));
+					section.mutex.importState(state.get("mutex"));
+					if(section.escrow != null){
+						@SuppressWarnings("unchecked")
+						ArrayList<TheaterUpdate.Operation> deleted = (ArrayList<TheaterUpdate.Operation>) state.get("deleted");
+						section.releaseReservations(deleted);
+					}
+					assert(section.service != null);
+				}
+			} catch (IOException e) {
+				onProcessDied(p);
+			}
 			if(p.live)
 				break;
 		}
 		
+		boolean alone = anyLivePeer() == null;
+		for(Section section : sections.values()){
+			if(alone)
+				section.mutex.onClusterCreated();
+			//The first server owns all empty seats, the others start with an empty quota and borrow seats when needed.
+			if(section.escrow != null){
+				section.releaseReservations(null);	//If no other server sent its state
+				if(alone)
+					section.escrow.add(section.service.emptySeats());
+				System.out.println("Escrow quota of "+section+": "+section.escrow);
+			}
+		}
+		
 		//Broadcast a confirmation to all servers so that they know this server is ready
 		broadCastMessage(MessageType.SERVER_SYNC_COMPLETE, null);
+		ready = true;
 		System.out.println("Synchronization success!");			
 		System.out.println("Cluster infomation:");
 		for(Process p : clusterInfo.values())
@@ -184,7 +266,9 @@ public class Server {
 		
 		//After successfully initialize clusterInfo...
 		try {
-			new ClockUpdateThread(5000).start();	//Start the clock update thread
+			new FailureDetector().start();	//Send heartbeats on idle links and watch the other servers
+			if(NioTransport.isStarted())
+				NioTransport.serve(serversocket.getChannel());	//The event loops serve every connection.
 			while(true){	//Keep doing
 				Socket socket = serversocket.accept();	//Got a connection!
 				new ServerThread(socket).start();	//Create a new server thread to serve this client.
@@ -201,141 +285,66 @@ public class Server {
 
 	
 	/**
-	 * Request critial section access. If critial section is unavailable, block the thread until it becomes available.
+	 * Request critial section access to a section. If critial section is unavailable, block the thread until it becomes
+	 * available.
+	 * @param section The section.
 	 * @param read true if read, false if write
 	 * @throws IOException If there is an error when transferring data from socket.
 	 */
-	private static void requestCriticalSection(boolean read) throws IOException {
-		//Acquire lock firstly
-		try {
-			if(read) read_write_lock.acquire();
-			else read_write_lock.acquire(MAX_READER_IN_A_SERVER);
-			cs_lock.acquire();
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
-		}
-	
-		final MessageType type = read? MessageType.CS_REQUEST_READ : MessageType.CS_REQUEST_WRITE;		//The sending message type.
-		final MessageType ackType = read? MessageType.ACKNOWLEDGE_READ : MessageType.ACKNOWLEDGE_WRITE;	//The receiving message type.
-		
-		for(Process process : clusterInfo.values())
-			process.message_event_lock();
-		
-		//Send the requests to all other servers
-		LinkedList<mThread> l = new LinkedList<mThread>();
-		final Message msg = new Message(type, null, updateClock());	//The request message
-		for(Process process : clusterInfo.values()){
-			if(!process.live || process.pid == pid) continue;
-			final Process p = process;
-			l.add(new mThread(){
-				@Override
-				public void run(){
-					try {
-						p.waitMessage(new MessageFilter(){
-							@Override
-							public boolean filt(Message m) {
-								return m.type == ackType && m.compareTo(msg) > 0 && m.clk.pid == p.pid;
-							}
-						}, MAX_RESPONSE_TIME); //Wait for its ack reply for 5s.
-					}catch (IOException e){
-						onProcessDied(p);	//No response, make it is died.
-					}
-					m.release();		
-				}
-			});
-			l.peekLast().start();
-			while(p.live && l.peekLast().getState() != Thread.State.WAITING);	//Wait until the thread starts waiting
-			try{
-				process.sendMessage(msg);
-			}catch(IOException e){}
-		}
-		for(Process process : clusterInfo.values())
-			process.message_event_unlock();
-		
-		//Wait until all threads stopped.
-		for(mThread thread : l)
-			try {
-				thread.m.acquire();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		//---------------------------------------------------------------------------------------------------------------
-		//If enter this line, then congratulations! You have received acks from all lived servers
-		synchronized(requests){
-			requests.add(msg);	//Add itself to the request queue
-			LinkedList<Message> list = requestsMap.get(pid);
-			if(list == null) requestsMap.put(pid, list = new LinkedList<Message>());
-			list.add(msg); //Add the message to the pid to message map.
-			if(read){
-				//If there is at least one write request whose timestamp is smaller, it has to wait
-				while(!writeRequests.isEmpty() && writeRequests.first().compareTo(msg) < 0)
-					try {
-						requests.wait();
-					} catch (InterruptedException e) {}
-			}else{
-				writeRequests.add(msg); //Add itself to the write request queue
-				while(requests.first() != msg)
-					try {
-						requests.wait();
-					} catch (InterruptedException e) {}
-			}
-		}
-		//After it's notified and satisfies the requirements, it can enter the cs.
-		cs_lock.release();
+	private static void requestCriticalSection(Section section, boolean read) throws IOException {
+		section.mutex.requestCriticalSection(read);
 	}
 	
 	/**
-	 * Release the critial section, so that other server processes can enter the critial section.
+	 * Release the critial section of a section, so that other server processes can enter the critial section. After a
+	 * write, the service (or the update made to it) is shipped to the other servers.
+	 * @param section The section.
+	 * @param read true if it was entered for read, false if write
 	 * @throws IOException If there is an error when transferring data from socket.
 	 */
-	private static void releaseCriticalSection() throws IOException{
-		boolean write = false;
-		synchronized(requests){
-			//Remove its request from the queue firstly
-			LinkedList<Message> list = requestsMap.get(pid);
-			assert(list != null);
-			Message msg = list.pollFirst();
-			assert(msg.clk.pid == pid);
-			requests.remove(msg);
-			if(write = (msg.type == MessageType.CS_REQUEST_WRITE))
-				writeRequests.remove(msg);
+	private static void releaseCriticalSection(Section section, boolean read) throws IOException{
+		Serializable content = null;
+		if(!read){
+			TheaterUpdate update = section.service.takeUpdate();
+			content = deltaReplication? update: section.service;
 		}
-		//Then tell every server that I want to release the critical section
-		TheaterService content = service;
-		broadCastMessage(MessageType.CS_RELEASE, write? content: null);
-		if(write) read_write_lock.release(MAX_READER_IN_A_SERVER);
-		else read_write_lock.release();
+		section.mutex.releaseCriticalSection(read, content);
+	}
+	
+	/**
+	 * Return a live server other than this one.
+	 * @return The server, or null if there is none.
+	 */
+	static Process anyLivePeer(){
+		for(Process p : clusterInfo.values())
+			if(p.live && p.pid != pid)
+				return p;
+		return null;
 	}
 	
 	/**
 	 * Update the logical clock, increase the timestamp of this process by 1.
 	 * @return The up to date clock.
 	 */
-	private static Clock updateClock(){
-		Clock ret = null;
-		synchronized(clock_lock){
-			//Enter critical section.
-			ret = clock = new Clock(clock.timestamp+1, clock.pid);
-			//Release critical section.
-		}
-		return ret;
+	static Clock updateClock(){
+		return clock.toClock(clock.tick());
 	}
 	
 	/**
 	 * Update the logical clock of this process according to a recerived timestamp.
-	 * @param timestamp The timestamp of a message.
-	 * @return The up to date clock.
+	 * @param timestamp The timestamp of a message, null if the message carries none.
 	 */
-	private static Clock updateClock(Clock timestamp){
-		Clock ret = null;
-		synchronized(clock_lock){
-			//Enter critical section.
-			if(timestamp == null) ret = clock;
-			else
-				ret = clock = new Clock(Math.max(clock.timestamp, timestamp.timestamp)+1, clock.pid);
-			//Release critical section.
-		}
-		return ret;
+	private static void updateClock(Clock timestamp){
+		if(timestamp != null)
+			clock.merge(timestamp.timestamp);
+	}
+	
+	/**
+	 * Return the sections and shows of the theater. The map is never modified.
+	 * @return The name to every section, in the order they were created.
+	 */
+	static Map<String, Section> sections(){
+		return sections;
 	}
 	
 	/**
@@ -343,19 +352,27 @@ public class Server {
 	 * @param process The died process
 	 */
 	public static void onProcessDied(Process process){
+		boolean wasLive;
 		synchronized(process){
+			wasLive = process.live;
 			process.live = false;
-			synchronized(requests){
-				LinkedList<Message> msgs = requestsMap.remove(process.pid);
-				if(msgs != null){
-					for(Message msg : msgs){
-						requests.remove(msg);
-						writeRequests.remove(msg);
-					}
+			System.err.println("pid="+process.pid+", addr="+process.ip+":"+process.port+", is dead");
+		}
+		if(wasLive)
+			Metrics.processDeaths.increment();
+		for(Section section : sections.values())
+			section.onProcessDied(process);
+		//The server with the smallest pid takes over the escrow quota of the dead server.
+		if(useEscrow && ready && wasLive){
+			for(Process p : clusterInfo.values())
+				if(p.live && p.pid != pid && p.pid < Server.pid) return;
+			new Thread(){
+				@Override
+				public void run(){
+					for(Section section : sections.values())
+						reclaimSeats(section);
 				}
-				System.err.println("pid="+process.pid+", addr="+process.ip+":"+process.port+", is dead");
-				requests.notifyAll();
-			}
+			}.start();
 		}
 	}
 	
@@ -368,173 +385,275 @@ public class Server {
 	 * @param process The process where this message is from. If this message is from client, pid of process will be -1.
 	 * @throws IOException If there is an error when transferring data from socket.
 	 */
-	public static void onReceivingMessage(Message msg, Process process) throws IOException{
-		updateClock(msg.clk); //Update the clock firstly.
-		switch(msg.type) {      //Add the message into the corresponding queue.
-			case CS_REQUEST_READ: 
-				//When receive the read request, add the request to the queue, then send back an acknowledgement.
-				synchronized(requests){
-					requests.add(msg);
-					LinkedList<Message> list = requestsMap.get(msg.clk.pid);
-					if(list == null) requestsMap.put(msg.clk.pid, list = new LinkedList<Message>());
-					list.add(msg);
+	public static void onReceivingMessage(final Message msg, final Process process) throws IOException{
+		if(process.pid < 0 && msg.type == MessageType.PING){	//Answered at once, so the client measures the network and not the queue
+			respondToClient(process, msg, String.valueOf(clientRequests.get()));
+			return;
+		}
+		if(process.pid < 0 && CLIENT_REQUESTS.contains(msg.type)){	//Not the messages of a server which is joining
+			msg.received = System.nanoTime();	//For the latency of the request
+			clientRequests.incrementAndGet();
+		}
+		if(process.pid < 0 && msg.id != 0){	//A client request with an id is answered with that id, so it may be answered out of order.
+			clientWorkers.execute(new Runnable(){
+				@Override
+				public void run(){
+					try {
+						handleRequest(msg, process);
+					} catch (IOException e) {}	//The client is gone.
 				}
-				process.message_event_lock();
-				process.sendMessage(new Message(MessageType.ACKNOWLEDGE_READ, null, updateClock()));
-				process.message_event_unlock();
+			});
+			return;
+		}
+		handleRequest(msg, process);
+	}
+	
+	/**
+	 * Handle a message received, see handleMessage(). A client request which fails is still answered if possible, or no
+	 * longer counted as being handled otherwise, so that the load reported to PING does not drift.
+	 * @param msg The message received.
+	 * @param process The process where this message is from.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	private static void handleRequest(Message msg, Process process) throws IOException{
+		try{
+			handleMessage(msg, process);
+		}catch(RuntimeException e){
+			if(msg.received == 0) throw e;	//Not a client request, or already answered
+			e.printStackTrace();
+			respondToClient(process, msg, "Sorry, the request could not be handled.");
+		}catch(IOException e){
+			finish(msg);	//It cannot be answered.
+			throw e;
+		}
+	}
+	
+	/**
+	 * Handle a message received, see onReceivingMessage().
+	 * @param msg The message received.
+	 * @param process The process where this message is from.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void handleMessage(Message msg, Process process) throws IOException{
+		updateClock(msg.clk); //Update the clock firstly.
+		if(msg.type == MessageType.CREATE_SHOW || msg.type == MessageType.DROP_SHOW){
+			onShowMessage(msg, process);
+			return;
+		}
+		Section section = msg.section == null? defaultSection: sections.get(msg.section);
+		if(section == null){
+			System.out.println("Unknown section "+msg.section);
+			if(msg.type == MessageType.RESERVE_SEAT || msg.type == MessageType.DELETE_SEAT || msg.type == MessageType.SEARCH_SEAT
+				|| msg.type == MessageType.GROUP_RESERVE)
+				respondToClient(process, msg, "Sorry, there is no section named " + msg.section + ".");
+			return;
+		}
+		if(section.mutex.onReceivingMessage(msg, process)) return;	//Messages of the mutual exclusion protocol of that section
+		if(section.dropped && (msg.type == MessageType.RESERVE_SEAT || msg.type == MessageType.DELETE_SEAT || msg.type == MessageType.SEARCH_SEAT
+				|| msg.type == MessageType.GROUP_RESERVE)){
+			respondToClient(process, msg, "Sorry, the show " + section.name + " has been dropped.");
+			return;
+		}
+		switch(msg.type) {
+			case STATE_UPDATE:
+				//Another server shipped its writes
+				if(section.onReplicatedState(msg.content, process))
+					section.sendSnapshotRequest(process);
 				break;
 				
-			case CS_REQUEST_WRITE:
-				//When receive the write request, add the request to the queue and write queue, then send back an acknowledgement.
-				synchronized(requests){
-					requests.add(msg);
-					writeRequests.add(msg);
-					LinkedList<Message> list = requestsMap.get(msg.clk.pid);
-					if(list == null) requestsMap.put(msg.clk.pid, list = new LinkedList<Message>());
-					list.add(msg);
-				}
+			case SERVER_SNAPSHOT_REQUEST:{
+				//Send back the operations the requester misses if they are still kept, otherwise the whole theater service
+				long[] position = (long[]) msg.content;
+				TheaterUpdate tail = position == null? null: section.service.tailAfter(position[0], position[1]);
 				process.message_event_lock();
-				process.sendMessage(new Message(MessageType.ACKNOWLEDGE_WRITE, null, updateClock()));
+				process.sendMessage(section.message(MessageType.SERVER_SNAPSHOT, tail != null? tail: section.service));
 				process.message_event_unlock();
 				break;
+			}
 				
-			case CS_RELEASE:
-				synchronized(requests){
-					LinkedList<Message> list = requestsMap.get(msg.clk.pid);
-					if(list == null) break;
-					Message del = list.pollFirst();
-					if(del == null) break;
-					requests.remove(del);
-					if(del.type == MessageType.CS_REQUEST_WRITE){
-						writeRequests.remove(del);
-						service = (TheaterService) msg.content;
-					}
-					requests.notifyAll();
-				}
+			case SERVER_SNAPSHOT:
+				section.onSnapshot(msg.content, process);
 				break;
 				
 			case RESERVE_SEAT:    //When receiving a reserve request, to execute the following service.
-				//enter cs
-				requestCriticalSection(false);
-				System.out.println("Got client request to reserve seates!");
-				String[] contents = ((String) msg.content).split(" ");
-
-				try {
-					//Reservation is successful
-					HashSet<Integer> seats = service.reserve(contents[0], Integer.parseInt(contents[1]));
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Congratulations, " + contents[0] + "! You have successfully reserved Seat" + seats, null));
-					process.message_event_unlock();
-					System.out.println("Reservation Success!!");	
-				} catch (NumberFormatException e) {
-					
-				} catch (NoEnoughSeatsException e) {
-					//There is not enough seats
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Sorry, " +contents[0] +  ". You have requested " + contents[1] + " seats, but only "+service.remainSeates()+" seates are empty.", null));
-					process.message_event_unlock();
-					System.out.println("No enough seates found!");
-				} catch (RepeateReservationException e) {
-					//The reservation is repeated
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Sorry, " +contents[0] +  ". You have reserved the seats: " + e.reservedSeats, null));
-					process.message_event_unlock();
-					System.out.println("Repeated reservation!");
+			case DELETE_SEAT:
+			case GROUP_RESERVE:		//All names in one critical section
+				if(section.escrow != null && msg.type == MessageType.RESERVE_SEAT)
+					escrowReserve(section, msg, process);	//No distributed lock needed
+				else if(section.escrow != null && msg.type == MessageType.GROUP_RESERVE)
+					escrowReserveGroup(section, msg, process);
+				else if(batchWrites)
+					submitWrite(section, msg, process);	//Apply it together with other writes in the next cs round
+				else{
+					//enter cs
+					requestCriticalSection(section, false);
+					try{
+						applyWrite(section, msg, process);
+					}finally{
+						//release cs, even if the write failed
+						releaseCriticalSection(section, false);
+					}
 				}
-				//release cs
-				releaseCriticalSection();
 				break;
 				
 			case SEARCH_SEAT:
+				if(!linearizableReads){
+					//Answer from the latest local snapshot, no distributed lock needed
+					System.out.println("Received search request from client");
+					TheaterSnapshot snapshot = section.service.snapshot();
+					try {
+						Set<Integer> seats = snapshot.search((String)msg.content);
+						respondToClient(process, msg, "Hello! " +  "Mr/Ms " + (String)msg.content + "! Your reserved seats" + in(section) + " are " + seats.toString());
+						System.out.println("Search is successful! (version "+snapshot.version+")");
+					} catch (NoReservationInfoException e) {
+						respondToClient(process, msg, "Sorry! No reservation information for Mr/Ms " + (String)msg.content + in(section) + " has been found ");
+						System.out.println("Unable to find data! (version "+snapshot.version+")");
+					}
+					break;
+				}
 				//Enter cs as a reader
-				requestCriticalSection(true);
+				requestCriticalSection(section, true);
 				System.out.println("Received search request from client");
 				try {
-					HashSet <Integer> seats = service.search((String)msg.content);
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Hello! " +  "Mr/Ms " + (String)msg.content + "! Your reserved seats are " + seats.toString(), null));
-					process.message_event_unlock();
+					HashSet <Integer> seats = section.service.search((String)msg.content);
+					respondToClient(process, msg, "Hello! " +  "Mr/Ms " + (String)msg.content + "! Your reserved seats" + in(section) + " are " + seats.toString());
 					System.out.println("Search is successful!");
 				} catch (NoReservationInfoException e) {
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Sorry! No reservation information for Mr/Ms " + (String)msg.content +" has been found ", null));
-					process.message_event_unlock();
+					respondToClient(process, msg, "Sorry! No reservation information for Mr/Ms " + (String)msg.content + in(section) + " has been found ");
 					System.out.println("Unable to find data!");
+				} finally {
+					//Leave cs
+					releaseCriticalSection(section, true);
 				}
-				//Leave cs
-				releaseCriticalSection();
 				break;
 				
-			case DELETE_SEAT:
-				//Enter cs as  a writer
-				requestCriticalSection(false);
-				System.out.println("Got seate deletion request");
-				try {
-					//num = the number of the released seats
-					int[] num = service.delete((String)msg.content);
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Success, " +(String)msg.content + ". You have released " + num[0] + " seats! "+num[1]+" seats remain.", null));
-					process.message_event_unlock();
-					System.out.println("Deletion is successful!");
-				} catch (NoReservationInfoException e) {
-					process.message_event_lock();
-					updateClock();
-					process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, "Sorry, " +(String)msg.content + ". No reservation information has been found.", null));
-					process.message_event_unlock();
-					System.out.println("Unable to find data!");
-				}
-				//Leave cs
-				releaseCriticalSection();
-				break;	
-			
+			case ESCROW_RESERVE:
+				//Another server reserved seats from its quota, for one name or for a group
+				if(msg.content instanceof ArrayList)
+					section.onReservations((ArrayList<TheaterUpdate.Operation>) msg.content);
+				else
+					section.onReservations(Collections.singletonList((TheaterUpdate.Operation) msg.content));
+				break;
+				
+			case ESCROW_BORROW:
+				//Give some seats of the local quota to a server which is short of seats
+				HashSet<Integer> granted = section.escrow == null? new HashSet<Integer>(): section.escrow.grant((Integer) msg.content);
+				process.message_event_lock();
+				process.sendMessage(section.message(MessageType.ESCROW_GRANT, granted));
+				process.message_event_unlock();
+				System.out.println("Granted "+granted.size()+" seats of "+section+" to pid="+process.pid);
+				break;
+				
+			case ESCROW_GRANT:
+				if(section.escrow != null)
+					section.escrow.add((HashSet<Integer>) msg.content);
+				break;
+				
+			case ESCROW_QUOTA_REQUEST:
+				process.message_event_lock();
+				process.sendMessage(section.message(MessageType.ESCROW_QUOTA, section.escrow == null? new HashSet<Integer>(): section.escrow.seats()));
+				process.message_event_unlock();
+				break;
+				
 			case SERVER_SYNC_START:
+				//Send the escrow reservations to the joining server from now on, with the versions they are made after.
+				HashMap<String, Long> versions = null;
+				if(useEscrow){
+					versions = new HashMap<String, Long>();
+					for(Section s : sections.values())
+						versions.put(s.name, s.version());
+					synchronized(joiners){
+						joiners.put(msg.clk.pid, process);
+					}
+				}
 				//Send back the seate information to the sync server.
 				process.message_event_lock();
-				process.sendMessage(new Message(MessageType.SERVER_SYNC_RESPONSE, null, updateClock()));
+				process.sendMessage(new Message(MessageType.SERVER_SYNC_RESPONSE, versions, updateClock()));
 				process.message_event_unlock();
 				break;
 				
+			case SERVER_SYNC_SNAPSHOT_REQUEST:
+				//Stream a copy of the section to a joining server, without any lock
+				section.sendCopy(process, (long[]) msg.content);
+				break;
+				
+			case SERVER_SYNC_SNAPSHOT_CHUNK:
+				section.onCopyChunk((SnapshotChunk) msg.content);
+				break;
+				
 			case SERVER_SYNC_DATA:
 				final Message message = msg;
-				final Process proc = process;
-				Thread waitThread = new Thread(){
-					@Override
-					public void run(){
-						try{
-							proc.waitMessage(new MessageFilter(){
-								@Override
-								public boolean filt(Message m) {
-									return m.type == MessageType.SERVER_SYNC_COMPLETE && m.clk.pid == message.clk.pid;
+				final Collection<Section> locked = sections.values();	//No show is created meanwhile, creating one takes the lock of the first section.
+				final ArrayList<Section> held = new ArrayList<Section>();	//The sections locked so far
+				MessageFuture completion = null;
+				boolean handedOver = false;	//If the thread below releases them
+				try{
+					//Lock every section, always in the same order so that two joining servers cannot deadlock.
+					for(Section s : locked){
+						requestCriticalSection(s, false);
+						held.add(s);
+					}
+					//Expect the completion before sending the data, so that it cannot be missed. The sections stay locked until then.
+					try{
+						completion = process.expectMessage(new MessageFilter(){
+							@Override
+							public boolean filt(Message m) {
+								return m.type == MessageType.SERVER_SYNC_COMPLETE && m.clk.pid == message.clk.pid;
+							}
+						}, MAX_RESPONSE_TIME);
+					}catch(IOException e){}	//The joiner is gone
+					final MessageFuture complete = completion;
+					new Thread(){
+						@Override
+						public void run(){
+							try{
+								if(complete != null)
+									complete.get();
+							}catch(IOException e){}
+							for(Section s : held)
+								try {
+									releaseCriticalSection(s, false);
+								} catch (IOException e) {
+									e.printStackTrace();
 								}
-							}, MAX_RESPONSE_TIME);
-						}catch(IOException e){}
-						try {
-							releaseCriticalSection();
-						} catch (IOException e) {
-							e.printStackTrace();
 						}
+					}.start();
+					handedOver = true;
+				}finally{
+					if(!handedOver)	//A section could not be locked, release the others.
+						for(Section s : held)
+							try {
+								releaseCriticalSection(s, false);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+				}
+				if(completion == null) break;
+				HashMap<String, long[]> positions = (HashMap<String, long[]>) msg.content;	//Where the joiner is after copying the sections
+				LinkedHashMap<String, HashMap<String, Serializable>> data = new LinkedHashMap<String, HashMap<String, Serializable>>();
+				for(Section s : locked){
+					HashMap<String, Serializable> state = new HashMap<String, Serializable>();
+					state.put("seats", s.seats);	//So that the joiner can create the shows it does not know
+					state.put("dropped", s.dropped);
+					long[] position = positions == null? null: positions.get(s.name);
+					TheaterUpdate tail = position == null? null: s.catchUp(process, position);
+					if(tail != null)
+						state.put("update", tail);	//Only what the joiner misses
+					else
+						state.put("service", s.service);
+					if(s.escrow != null && position != null && position.length > 2){
+						//The deletions since the joiner started holding escrow reservations, so that it does not merge them back.
+						ArrayList<TheaterUpdate.Operation> deleted = s.service.deletionsAfter(position[2]);
+						if(deleted != null)
+							state.put("deleted", deleted);
 					}
-				};
-				requestCriticalSection(false);
-				waitThread.start();
-				while(waitThread.getState() != Thread.State.WAITING && waitThread.getState()!=Thread.State.TERMINATED);
-				if(waitThread.getState() != Thread.State.WAITING) break;
-				HashMap<String, Serializable> data = new HashMap<String, Serializable>();
-				data.put("service", service);
-				synchronized(requests){	
-					data.put("requests",requests);
-					data.put("writeRequests", writeRequests);
-					data.put("requestsMap", requestsMap);
-					process.message_event_lock();
-					process.sendMessage(new Message(MessageType.SERVER_SYNC_RESPONSE, data, updateClock()));
-					process.message_event_unlock();
+					state.put("mutex", s.mutex.exportState());
+					data.put(s.name, state);
 				}
+				process.message_event_lock();
+				process.sendMessage(new Message(MessageType.SERVER_SYNC_RESPONSE, data, updateClock()));
+				process.message_event_unlock();
 				break;
 
 			case SERVER_SYNC_COMPLETE:
@@ -543,7 +662,10 @@ public class Server {
 				synchronized(p){
 					assert(!p.live);
 					p.live = true;	//That server is ready, so add it to the system.
-					p.associate((ServerThread)Thread.currentThread());
+					p.associate(process.connection());	//Messages on this connection now come from that server.
+				}
+				synchronized(joiners){
+					joiners.remove(p.pid);	//Live now, so the escrow reservations reach it as any other server.
 				}
 				System.out.println("pid="+p.pid+", addr="+p.ip+":"+p.port+", added to this system");
 				break;
@@ -552,25 +674,675 @@ public class Server {
 		}
 	}
 	
+	/**
+	 * Create a section, with its mutual exclusion protocol and its escrow quota, recovered from disk if the seats are kept
+	 * there. It is not added to the sections yet.
+	 * @param name The name of the section.
+	 * @param seats The number of seats.
+	 * @return The section.
+	 * @throws IOException If the section cannot be recovered from disk.
+	 */
+	private static Section newSection(String name, int seats) throws IOException{
+		Section section = new Section(name, seats);
+		if(mutexType.equals("token"))
+			section.mutex = new TokenMutualExclusion(section, clusterInfo.size());
+		else if(mutexType.equals("maekawa"))
+			section.mutex = new QuorumMutualExclusion(section);
+		else
+			section.mutex = new LamportMutualExclusion(section);
+		if(useEscrow)
+			section.escrow = new SeatEscrow();
+		if(walDir != null){
+			long start = System.nanoTime();
+			section.recover(new File(walDir, "server-"+pid+File.separator+name));
+			System.out.println("Section "+section+" restarted from disk in "+(System.nanoTime() - start) / 1000000+"ms");
+		}
+		return section;
+	}
+	
+	/**
+	 * Add a section after the others. The map of sections is replaced, so that threads iterating over the old one are
+	 * not disturbed.
+	 * @param section The section.
+	 */
+	private static void addSection(Section section){
+		synchronized(shows_lock){
+			LinkedHashMap<String, Section> map = new LinkedHashMap<String, Section>(sections);
+			map.put(section.name, section);
+			sections = map;
+		}
+	}
+	
+	/**
+	 * Handle a CREATE_SHOW or DROP_SHOW message, from a client who asks for it or from the server announcing it.
+	 * @param msg The message, naming the show in its section.
+	 * @param process The sender.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	private static void onShowMessage(Message msg, Process process) throws IOException{
+		String name = msg.section;
+		if(process.pid < 0){	//From a client
+			if(name == null || name.isEmpty() || name.contains(" "))
+				respondToClient(process, msg, "Sorry, a show needs a name without spaces.");
+			else if(msg.type == MessageType.CREATE_SHOW)
+				createShow(name, msg.content instanceof Integer? (Integer) msg.content: 0, msg, process);
+			else
+				dropShow(name, msg, process);
+			return;
+		}
+		Section section = sections.get(name);
+		if(msg.type == MessageType.CREATE_SHOW){
+			if(section == null){
+				section = newSection(name, (Integer) msg.content);
+				addSection(section);
+				recordShow("create "+name+" "+section.seats);
+				System.out.println("pid="+process.pid+" created the show "+name+" with "+section.seats+" seats");
+			}
+		}else if(section != null && !section.dropped){
+			section.dropped = true;
+			recordShow("drop "+name);
+			System.out.println("pid="+process.pid+" dropped the show "+name);
+		}
+		process.message_event_lock();
+		try{
+			process.sendMessage(new Message(MessageType.ACKNOWLEDGE_SHOW, msg.clk, updateClock(), name));
+		}finally{
+			process.message_event_unlock();
+		}
+	}
+	
+	/**
+	 * Create a show for a client. Shows are created under the critical section of the first section, so that two servers
+	 * cannot create the same show, and no show is created while a joining server receives the sections. The client is
+	 * answered once every server has the show.
+	 * @param name The name of the show.
+	 * @param seats The number of seats.
+	 * @param request The request of the client.
+	 * @param client The client.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	private static void createShow(String name, int seats, Message request, Process client) throws IOException{
+		if(seats <= 0){
+			respondToClient(client, request, "Sorry, the show " + name + " needs at least one seat.");
+			return;
+		}
+		requestCriticalSection(defaultSection, false);
+		try{
+			Section section = sections.get(name);
+			if(section != null){
+				respondToClient(client, request, "Sorry, the show " + name + (section.dropped? " has been dropped.": " already exists."));
+				return;
+			}
+			section = newSection(name, seats);
+			if(useEscrow)
+				section.escrow.add(section.service.emptySeats());	//The creator owns all seats, like the first server.
+			section.mutex.onClusterCreated();	//For the token, the creator holds it.
+			addSection(section);
+			recordShow("create "+name+" "+seats);
+			announce(section, MessageType.CREATE_SHOW, seats);
+			System.out.println("Created the show "+name+" with "+seats+" seats");
+			respondToClient(client, request, "The show " + name + " with " + seats + " seats has been created.");
+		}finally{
+			releaseCriticalSection(defaultSection, false);
+		}
+	}
+	
+	/**
+	 * Drop a show for a client. The show is dropped under its own critical section, so no write to it is in progress
+	 * anywhere; its seats are kept, but no client request is served anymore and its name cannot be used again.
+	 * @param name The name of the show.
+	 * @param request The request of the client.
+	 * @param client The client.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	private static void dropShow(String name, Message request, Process client) throws IOException{
+		Section section = sections.get(name);
+		if(section == null || section == defaultSection){
+			respondToClient(client, request, "Sorry, " + (section == null? "there is no show named " + name + ".": "the first section cannot be dropped."));
+			return;
+		}
+		requestCriticalSection(section, false);
+		try{
+			if(!section.dropped){
+				section.dropped = true;
+				recordShow("drop "+name);
+				announce(section, MessageType.DROP_SHOW, null);
+				System.out.println("Dropped the show "+name);
+			}
+			respondToClient(client, request, "The show " + name + " has been dropped.");
+		}finally{
+			releaseCriticalSection(section, false);
+		}
+	}
+	
+	/**
+	 * Send a CREATE_SHOW or DROP_SHOW to all other servers, and wait until each of them has acknowledged it.
+	 * @param section The show.
+	 * @param type The type of message.
+	 * @param content The content.
+	 */
+	private static void announce(Section section, MessageType type, Serializable content){
+		HashMap<Process, MessageFuture> acks = new HashMap<Process, MessageFuture>();
+		Message msg = section.message(type, content);
+		for(Process process : clusterInfo.values()){
+			if(!process.live || process.pid == pid) continue;
+			process.message_event_lock();
+			try{
+				acks.put(process, process.expectMessage(new MessageKey(MessageType.ACKNOWLEDGE_SHOW, section.name, msg.clk), MAX_RESPONSE_TIME));
+				process.sendMessage(msg);
+			}catch(IOException e){
+			}finally{
+				process.message_event_unlock();
+			}
+		}
+		for(Entry<Process, MessageFuture> ack : acks.entrySet())
+			try {
+				ack.getValue().get();
+			}catch (IOException e){
+				onProcessDied(ack.getKey());	//No response, make it is died.
+			}
+	}
+	
+	/**
+	 * Append a change of the shows to the file they are kept in, if the seats are kept on disk. The file lists the
+	 * changes as lines "create <name> <seats>" and "drop <name>".
+	 * @param line The change.
+	 */
+	private static void recordShow(String line){
+		if(walDir == null) return;
+		synchronized(shows_lock){
+			try {
+				FileWriter writer = new FileWriter(new File(walDir, "server-"+pid+File.separator+"shows"), true);
+				try{
+					writer.write(line+"\n");
+				}finally{
+					writer.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Create the shows kept on disk, in the order they were created.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private static void loadShows() throws IOException{
+		File file = new File(walDir, "server-"+pid+File.separator+"shows");
+		if(!file.exists()) return;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] splits = line.split(" ");
+				Section section = sections.get(splits[1]);
+				if(splits[0].equals("create") && section == null)
+					addSection(newSection(splits[1], Integer.parseInt(splits[2])));
+				else if(splits[0].equals("drop") && section != null)
+					section.dropped = true;
+			}
+		}finally{
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Describe a section in responses to clients. Nothing is added if the theater has only one section.
+	 * @param section The section.
+	 * @return The description.
+	 */
+	private static String in(Section section){
+		return sections.size() > 1? " in " + section.name: "";
+	}
+	
+	/**
+	 * Apply a client write request (RESERVE_SEAT, DELETE_SEAT or GROUP_RESERVE) to the theater service and respond to the
+	 * client.
+	 * The caller must hold the critical section of the section as a writer.
+	 * @param section The section.
+	 * @param msg The client request.
+	 * @param process The client process.
+	 * @throws IOException If there is an error when responding to the client.
+	 */
+	private static void applyWrite(Section section, Message msg, Process process) throws IOException{
+		if(msg.type == MessageType.RESERVE_SEAT){
+			System.out.println("Got client request to reserve seates!");
+			String[] contents = ((String) msg.content).split(" ");
+			int count;
+			try{
+				count = Integer.parseInt(contents[1]);
+			}catch(RuntimeException e){	//No count, or not a number
+				count = 0;
+			}
+			if(count <= 0){
+				respondToClient(process, msg, "Sorry, a reservation must be given as \"name count\", with at least one seat.");
+				return;
+			}
+
+			try {
+				//Reservation is successful
+				HashSet<Integer> seats = section.service.reserve(contents[0], count);
+				respondToClient(process, msg, "Congratulations, " + contents[0] + "! You have successfully reserved Seat" + seats + in(section));
+				System.out.println("Reservation Success!!");	
+			} catch (NoEnoughSeatsException e) {
+				//There is not enough seats
+				respondToClient(process, msg, "Sorry, " +contents[0] +  ". You have requested " + contents[1] + " seats, but only "+section.service.remainSeates()+" seates are empty" + in(section) + ".");
+				System.out.println("No enough seates found!");
+			} catch (RepeateReservationException e) {
+				//The reservation is repeated
+				respondToClient(process, msg, "Sorry, " +contents[0] +  ". You have reserved the seats: " + e.reservedSeats + in(section));
+				System.out.println("Repeated reservation!");
+			}
+		}else if(msg.type == MessageType.GROUP_RESERVE){
+			System.out.println("Got client request to reserve seates for a group!");
+			String[] entries = ((String) msg.content).split(",");
+			String[] names = new String[entries.length];
+			int[] counts = new int[entries.length];
+			if(!parseGroup(entries, names, counts)){
+				respondToClient(process, msg, "Sorry, a group reservation must be given as \"name count,name count,...\".");
+				return;
+			}
+			TheaterService.Booking[] bookings = section.service.reserveGroup(names, counts);
+			respondToClient(process, msg, groupResult(section, bookings));
+			System.out.println("Group reservation done for "+bookings.length+" names!");
+		}else{
+			assert(msg.type == MessageType.DELETE_SEAT);
+			System.out.println("Got seate deletion request");
+			String name = (String)msg.content;
+			try {
+				//num = the number of the released seats
+				int[] num;
+				if(section.escrow == null)
+					num = section.service.delete(name);
+				else synchronized(section.escrow){	//The released seats join the local quota.
+					HashSet<Integer> released = new HashSet<Integer>(section.service.search(name));
+					num = section.service.delete(name);
+					section.escrow.add(released);
+				}
+				respondToClient(process, msg, "Success, " + name + ". You have released " + num[0] + " seats! "+num[1]+" seats remain" + in(section) + ".");
+				System.out.println("Deletion is successful!");
+			} catch (NoReservationInfoException e) {
+				respondToClient(process, msg, "Sorry, " + name + ". No reservation information has been found" + in(section) + ".");
+				System.out.println("Unable to find data!");
+			}
+		}
+	}
+	
+	/**
+	 * Reserve seats from the local escrow quota of a section, without entering the critical section. If the quota is too
+	 * small, seats are borrowed from other servers first. The reservation is then broadcast to all other servers.
+	 * @param section The section.
+	 * @param msg The client request.
+	 * @param process The client process.
+	 * @throws IOException If there is an error when responding to the client.
+	 */
+	private static void escrowReserve(Section section, Message msg, Process process) throws IOException{
+		System.out.println("Got client request to reserve seates from escrow!");
+		String[] contents = ((String) msg.content).split(" ");
+		int count;
+		try{
+			count = Integer.parseInt(contents[1]);
+		}catch(RuntimeException e){	//No count, or not a number
+			count = 0;
+		}
+		if(count <= 0){
+			respondToClient(process, msg, "Sorry, a reservation must be given as \"name count\", with at least one seat.");
+			return;
+		}
+		if(section.escrow.size() < count)
+			borrowSeats(section, count);
+		HashSet<Integer> seats;
+		try{
+			synchronized(section.escrow){	//Seats must not be in the quota and empty at the same time, or reclaimSeats() may count them twice.
+				seats = section.escrow.take(count);
+				if(seats == null) throw new NoEnoughSeatsException();
+				try{
+					section.service.reserveSeats(contents[0], seats);
+				}catch(RepeateReservationException e){
+					section.escrow.add(seats);
+					throw e;
+				}
+			}
+		} catch (NoEnoughSeatsException e) {
+			respondToClient(process, msg, "Sorry, " +contents[0] +  ". You have requested " + contents[1] + " seats, but only "+section.service.remainSeates()+" seates are empty" + in(section) + ".");
+			System.out.println("No enough seates found!");
+			return;
+		} catch (RepeateReservationException e) {
+			respondToClient(process, msg, "Sorry, " +contents[0] +  ". You have reserved the seats: " + e.reservedSeats + in(section));
+			System.out.println("Repeated reservation!");
+			return;
+		}
+		broadcastReservations(section, new TheaterUpdate.Operation(contents[0], true, seats));
+		respondToClient(process, msg, "Congratulations, " + contents[0] + "! You have successfully reserved Seat" + seats + in(section));
+		System.out.println("Reservation Success!! "+section.escrow+" left in escrow of "+section);
+	}
+	
+	/**
+	 * Reserve seats for a group from the local escrow quota of a section, as escrowReserve() does for one name. Seats for
+	 * the whole group are borrowed at once if the quota is too small, and the reservations of the group are broadcast in
+	 * one message.
+	 * @param section The section.
+	 * @param msg The client request.
+	 * @param process The client process.
+	 * @throws IOException If there is an error when responding to the client.
+	 */
+	private static void escrowReserveGroup(Section section, Message msg, Process process) throws IOException{
+		System.out.println("Got client request to reserve seates for a group from escrow!");
+		String[] entries = ((String) msg.content).split(",");
+		String[] names = new String[entries.length];
+		int[] counts = new int[entries.length];
+		if(!parseGroup(entries, names, counts)){
+			respondToClient(process, msg, "Sorry, a group reservation must be given as \"name count,name count,...\".");
+			return;
+		}
+		int total = 0;
+		for(int count : counts)
+			total += count;
+		if(section.escrow.size() < total)
+			borrowSeats(section, total);
+		TheaterService.Booking[] bookings = new TheaterService.Booking[names.length];
+		ArrayList<TheaterUpdate.Operation> ops = new ArrayList<TheaterUpdate.Operation>();
+		synchronized(section.escrow){	//See escrowReserve()
+			synchronized(section.service){	//No other operation in between, as with reserveGroup()
+				for(int i = 0; i < names.length; i++){
+					HashSet<Integer> seats = section.escrow.take(counts[i]);
+					if(seats == null){
+						bookings[i] = new TheaterService.Booking(names[i], counts[i], null, new NoEnoughSeatsException());
+						continue;
+					}
+					try{
+						section.service.reserveSeats(names[i], seats);
+						bookings[i] = new TheaterService.Booking(names[i], counts[i], seats, null);
+						ops.add(new TheaterUpdate.Operation(names[i], true, seats));
+					}catch(RepeateReservationException e){
+						section.escrow.add(seats);
+						bookings[i] = new TheaterService.Booking(names[i], counts[i], null, e);
+					}
+				}
+			}
+		}
+		if(!ops.isEmpty())
+			broadcastReservations(section, ops);
+		respondToClient(process, msg, groupResult(section, bookings));
+		System.out.println("Group reservation done for "+bookings.length+" names! "+section.escrow+" left in escrow of "+section);
+	}
+	
+	/**
+	 * Parse the entries of a GROUP_RESERVE request, each of which is "name count".
+	 * @param entries The entries.
+	 * @param names The names parsed, as many as the entries.
+	 * @param counts The counts parsed, as many as the entries.
+	 * @return false if an entry is malformed.
+	 */
+	private static boolean parseGroup(String[] entries, String[] names, int[] counts){
+		for(int i = 0; i < entries.length; i++){
+			String[] contents = entries[i].trim().split(" ");
+			if(contents.length != 2) return false;
+			names[i] = contents[0];
+			try{
+				counts[i] = Integer.parseInt(contents[1]);
+			}catch(NumberFormatException e){
+				return false;
+			}
+			if(counts[i] <= 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the response to a group reservation, one line for each name in the order requested, as it would be for a
+	 * RESERVE_SEAT request of that name.
+	 * @param section The section.
+	 * @param bookings The results of the reservation.
+	 * @return The response.
+	 */
+	private static String groupResult(Section section, TheaterService.Booking[] bookings){
+		StringBuilder sb = new StringBuilder();
+		for(TheaterService.Booking booking : bookings){
+			if(sb.length() > 0) sb.append('\n');
+			if(booking.seats != null)
+				sb.append("Congratulations, " + booking.name + "! You have successfully reserved Seat" + booking.seats + in(section));
+			else if(booking.failure instanceof RepeateReservationException)
+				sb.append("Sorry, " + booking.name + ". You have reserved the seats: " + ((RepeateReservationException) booking.failure).reservedSeats + in(section));
+			else
+				sb.append("Sorry, " + booking.name + ". You have requested " + booking.count + " seats, but only "+section.service.remainSeates()+" seates are empty" + in(section) + ".");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Borrow seats from other servers until the local escrow quota of a section has at least count seats or every server
+	 * has been asked.
+	 * @param section The section.
+	 * @param count The number of seats needed.
+	 */
+	private static void borrowSeats(final Section section, final int count){
+		try {
+			section.borrow_lock.acquire();	//One borrower at a time, the others can use what it gets.
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		for(Process process : clusterInfo.values()){
+			if(section.escrow.size() >= count) break;
+			if(!process.live || process.pid == pid) continue;
+			final Process p = process;
+			try {
+				//Expect the grant before asking, so that it cannot be missed.
+				MessageFuture grant = p.expectMessage(new MessageFilter(){
+					@Override
+					public boolean filt(Message m) {
+						return m.type == MessageType.ESCROW_GRANT && section.owns(m) && m.clk.pid == p.pid;
+					}
+				}, MAX_RESPONSE_TIME);
+				p.message_event_lock();
+				try{
+					p.sendMessage(section.message(MessageType.ESCROW_BORROW, count - section.escrow.size()));
+				}finally{
+					p.message_event_unlock();
+				}
+				grant.get();	//The granted seats are added to the quota when the message is received.
+			} catch (IOException e) {
+				onProcessDied(p);
+			}
+		}
+		section.borrow_lock.release();
+	}
+	
+	/**
+	 * Take over the seats of a section in the quota of dead servers. These are the empty seats which are not in the quota
+	 * of any live server. A grant which is still on its way between two other servers may be counted as well, this window
+	 * is accepted.
+	 * @param section The section.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void reclaimSeats(final Section section){
+		try {
+			section.borrow_lock.acquire();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		HashSet<Integer> owned = new HashSet<Integer>();	//Seats in the quota of other live servers
+		//Ask every server at once, expecting each answer before asking so that none can be missed.
+		HashMap<Process, MessageFuture> quotas = new HashMap<Process, MessageFuture>();
+		for(Process process : clusterInfo.values()){
+			if(!process.live || process.pid == pid) continue;
+			final Process p = process;
+			try {
+				quotas.put(p, p.expectMessage(new MessageFilter(){
+					@Override
+					public boolean filt(Message m) {
+						return m.type == MessageType.ESCROW_QUOTA && section.owns(m) && m.clk.pid == p.pid;
+					}
+				}, MAX_RESPONSE_TIME));
+				p.message_event_lock();
+				try{
+					p.sendMessage(section.message(MessageType.ESCROW_QUOTA_REQUEST, null));
+				}finally{
+					p.message_event_unlock();
+				}
+			} catch (IOException e) {}	//Its quota request fails below.
+		}
+		for(Map.Entry<Process, MessageFuture> quota : quotas.entrySet())
+			try {
+				owned.addAll((HashSet<Integer>) quota.getValue().get().content);
+			} catch (IOException e) {
+				onProcessDied(quota.getKey());
+			}
+		synchronized(section.escrow){
+			HashSet<Integer> orphans = section.service.emptySeats();
+			orphans.removeAll(owned);
+			orphans.removeAll(section.escrow.seats());
+			section.escrow.add(orphans);
+			System.out.println("Reclaimed "+orphans.size()+" seats of "+section+" from dead servers, "+section.escrow+" in escrow");
+		}
+		section.borrow_lock.release();
+	}
+	
+	/**
+	 * Send a response to a client, with the id of its request.
+	 * @param process The client process.
+	 * @param request The request answered.
+	 * @param text The response.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	private static void respondToClient(Process process, Message request, String text) throws IOException{
+		long received = finish(request);	//Counted once, even if the client is gone
+		if(received != 0)
+			Metrics.clientLatency(request.type, System.nanoTime() - received);
+		process.message_event_lock();
+		clock.tick();	//The response carries no clock
+		try{
+			process.sendMessage(new Message(MessageType.RESPOND_TO_CLIENT, text, null, null, request.id));
+		}finally{
+			process.message_event_unlock();
+		}
+	}
+	
+	/**
+	 * Stop counting a client request as being handled.
+	 * @param request The request.
+	 * @return The time(ns) it was received, 0 if it was not counted or is no longer.
+	 */
+	private static long finish(Message request){
+		synchronized(request){
+			long received = request.received;
+			if(received != 0){
+				request.received = 0;
+				clientRequests.decrementAndGet();
+			}
+			return received;
+		}
+	}
+	
+	/**
+	 * Queue a client write request so that it is applied in the next critical section round of its section. If no thread
+	 * is running cs rounds for pending writes of the section, the calling thread becomes that thread and keeps acquiring the
+	 * critical section until the queue is drained; otherwise this method returns immediately and the request is answered by
+	 * that thread.
+	 * @param section The section.
+	 * @param msg The client request.
+	 * @param process The client process.
+	 * @throws IOException If there is an error when transferring data from socket.
+	 */
+	private static void submitWrite(Section section, Message msg, Process process) throws IOException{
+		synchronized(section.pendingWrites){
+			section.pendingWrites.add(new Section.PendingWrite(msg, process));
+			if(section.batchInFlight) return;	//The running round will pick it up.
+			section.batchInFlight = true;
+		}
+		boolean done = false;
+		try{
+			while(!done){
+				requestCriticalSection(section, false);
+				try{
+					LinkedList<Section.PendingWrite> batch;
+					synchronized(section.pendingWrites){
+						batch = new LinkedList<Section.PendingWrite>(section.pendingWrites);
+						section.pendingWrites.clear();
+					}
+					System.out.println("Applying a batch of "+batch.size()+" writes to "+section);
+					for(Section.PendingWrite write : batch){
+						try{
+							applyWrite(section, write.msg, write.process);
+						}catch(IOException e){	//That client is gone, the others should still be answered.
+							finish(write.msg);
+						}catch(RuntimeException e){
+							e.printStackTrace();
+							try{
+								respondToClient(write.process, write.msg, "Sorry, the request could not be handled.");
+							}catch(IOException e1){}
+						}
+					}
+				}finally{
+					releaseCriticalSection(section, false);
+				}
+				synchronized(section.pendingWrites){
+					if(section.pendingWrites.isEmpty()){
+						section.batchInFlight = false;	//Cleared together with the check, or a new write may be stranded.
+						done = true;
+					}
+				}
+			}
+		}finally{
+			if(!done){
+				synchronized(section.pendingWrites){
+					section.batchInFlight = false;
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Send the timestamped message to all other servers.
 	 * @param type The type of message
 	 * @param content Content of message
 	 */
 	public static void broadCastMessage(MessageType type, Serializable content){
+		broadCastMessage(null, type, content);
+	}
+	
+	/**
+	 * Send the timestamped message about a section to all other servers.
+	 * @param section The section, null if the message is not about a section.
+	 * @param type The type of message
+	 * @param content Content of message
+	 */
+	static void broadCastMessage(Section section, MessageType type, Serializable content){
 		for(Process process : clusterInfo.values()){
 			if(!process.live || process.pid == pid) continue;
 			process.message_event_lock();
 			try {
-				process.sendMessage(new Message(type, content, updateClock()));
+				process.sendMessage(section == null? new Message(type, content, updateClock()): section.message(type, content));
 			} catch (IOException e) {}
 			process.message_event_unlock();
 		}
 	}
 	
+	/**
+	 * Send escrow reservations made by this server to all other servers, including those which are joining.
+	 * @param section The section.
+	 * @param content The reservation, or an ArrayList of them.
+	 */
+	private static void broadcastReservations(Section section, Serializable content){
+		broadCastMessage(section, MessageType.ESCROW_RESERVE, content);
+		ArrayList<Process> targets;
+		synchronized(joiners){
+			targets = new ArrayList<Process>(joiners.values());
+		}
+		for(Process process : targets){
+			process.message_event_lock();
+			try {
+				process.sendMessage(section.message(MessageType.ESCROW_RESERVE, content));
+			} catch (IOException e) {}	//The joiner is gone.
+			process.message_event_unlock();
+		}
+	}
+	
 	/**
 	 * Entrance of the server process.
-	 * @param args args[0] is the file where the server addresses and port# are defined.
+	 * @param args args[0] is the file where the server addresses and port# are defined, args[1] is the number of seats
+	 * (unless -sections is given), the rest are optional flags (see readme.txt).
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
 	 */
@@ -602,7 +1374,42 @@ public class Server {
 		
 
 	public static void main(String[] args) throws FileNotFoundException, IOException{
-		init(args[0], Integer.parseInt(args[1]));
+		LinkedHashMap<String, Integer> sectionSeats = new LinkedHashMap<String, Integer>();	//Name to number of seats
+		for(int i = 2; i < args.length; i++){	//Optional flags after the two required arguments
+			if(args[i].equals("-batch"))
+				batchWrites = true;
+			else if(args[i].equals("-linearizable"))
+				linearizableReads = true;
+			else if(args[i].equals("-delta"))
+				deltaReplication = true;
+			else if(args[i].equals("-mutex") && i+1 < args.length)
+				mutexType = args[++i];
+			else if(args[i].equals("-sections") && i+1 < args.length){
+				for(String section : args[++i].split(",")){	//name:seats,name:seats,...
+					String[] splits = section.split(":");
+					sectionSeats.put(splits[0], Integer.parseInt(splits[1]));
+				}
+			}
+			else if(args[i].equals("-codec") && i+1 < args.length)
+				MessageCodec.setFormat(MessageCodec.Format.valueOf(args[++i].toUpperCase()));
+			else if(args[i].equals("-wal") && i+1 < args.length){
+				walDir = new File(args[++i]);
+				deltaReplication = true;	//A whole service shipped on every CS_RELEASE would be a checkpoint on every write.
+			}
+			else if(args[i].equals("-metrics") && i+1 < args.length)
+				metricsPeriod = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-nio"))
+				nioThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			else if(args[i].equals("-escrow")){
+				useEscrow = true;
+				deltaReplication = true;	//A whole service shipped on CS_RELEASE would overwrite reservations made from other quotas.
+			}
+			else
+				System.err.println("Unknown option: "+args[i]);
+		}
+		if(sectionSeats.isEmpty())
+			sectionSeats.put("main", Integer.parseInt(args[1]));	//The whole theater is one section.
+		init(args[0], sectionSeats);
 
 	}
 }
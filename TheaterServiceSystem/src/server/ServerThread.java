@@ -2,89 +2,67 @@ package server;
 
 import java.io.*;
 import java.net.*;
-import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import message.*;
 
 /**
- * Server thread is the thread where server runs. It waits for requests from clients and handle it.
+ * Server thread is the thread where server runs. It waits for requests from clients and handle it. Each server thread
+ * serves one blocking socket.
  *
  */
-public class ServerThread extends Thread {
-	
-	final ObjectInputStream istream; //The input stream
-	final ObjectOutputStream ostream; //The output stream
-	Process process; //The process associated
-	final private HashSet<LinkedBlockingQueue<Message>> waitingQueues = new HashSet<LinkedBlockingQueue<Message>>();
-	
-	/**
-	 * Initialize a server thread with a socket input and output stream.
-	 * @param istream	//The input stream
-	 * @param ostream	//The output stream
-	 */
-	public ServerThread(ObjectInputStream istream, ObjectOutputStream ostream){
-		this.istream = istream;
-		this.ostream = ostream;
-		new Process(-1,null,-1).associate(this);
-	}
-	
+public class ServerThread extends Connection implements Runnable {
+
+	final DataInputStream istream; //The input stream
+	final DataOutputStream ostream; //The output stream
+	private final Socket socket;	//The socket
+	private final Thread thread = new Thread(this);	//The thread reading from the socket
+
 	/**
 	 * Initialize a sever thread with a socket.
 	 * @param socket The socket.
 	 * @throws IOException If cannot initialize this thread due to an io error
 	 */
 	public ServerThread(Socket socket) throws IOException{
-		this(new ObjectInputStream(socket.getInputStream()), new ObjectOutputStream(socket.getOutputStream()));
+		this.socket = socket;
+		socket.setTcpNoDelay(true);	//Every frame is written at once, Nagle would only hold a request back behind a release.
+		this.istream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.ostream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		new Process(-1,null,-1).associate(this);
 	}
-	
-	
+
+	@Override
+	public void start(){
+		thread.start();
+	}
+
 	@Override
 	public void run(){
 		System.out.println("Server thread "+Thread.currentThread().getId()+" starts!");
 		try {
-			while(true){			
-				Message msg = (Message)istream.readObject();	//Listen to messages
-				synchronized(process){
-					if(!process.live) break;
-				}
-				Server.onReceivingMessage(msg, process);	//Throw the new message to server for response
-				synchronized(waitingQueues){
-					for(LinkedBlockingQueue<Message> q: waitingQueues)
-						try {
-							q.put(msg);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-				}
+			while(true){
+				Message msg = MessageCodec.read(istream);	//Listen to messages
+				if(!onMessage(msg)) break;
 			}
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
 		} catch (IOException e) {}
-		System.out.println("Server thread "+Thread.currentThread().getId()+" stops!");
-		if(process.pid >= 0){
-			Server.onProcessDied(process);
-		}
+		onClosed();
 	}
-	
-	/**
-	 * Wait for the next message received. This method call is blocking. Warning: message returned by this
-	 * method are also exposed to other threads. Be careful with cocurrent issues when dealing with the message.
-	 * @return The next message received
-	 * @throws InterruptedException If the waiting thread is interrupted.
-	 */
-	public Message waitForMessage(MessageFilter filter) throws InterruptedException{
-		LinkedBlockingQueue<Message> mQueue = new LinkedBlockingQueue<Message>();
-		synchronized(waitingQueues){
-			waitingQueues.add(mQueue);
-		}
-		Message ret = null;
-		while(!filter.filt(ret = mQueue.take()));
-			
-		synchronized(waitingQueues){
-			waitingQueues.remove(mQueue);
+
+	@Override
+	public void sendMessage(Message msg) throws IOException{
+		synchronized(ostream){
+			MessageCodec.write(ostream, msg);
 		}
-		return ret;
 	}
-	
+
+	@Override
+	public void close(){
+		try {
+			socket.close();	//The reading thread stops and calls onClosed().
+		} catch (IOException e) {}
+	}
+
+	@Override
+	public long id(){
+		return thread.getId();
+	}
 }
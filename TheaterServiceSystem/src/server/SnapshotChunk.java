@@ -0,0 +1,37 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * SnapshotChunk is a part of a serialized TheaterService sent to a joining server. A section is sent as a sequence of
+ * chunks in the order of their offsets; a single chunk with a total of 0 means that no copy is needed.
+ *
+ */
+public class SnapshotChunk implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final long version;	//The version of the service copied.
+	public final int offset;	//The offset of this chunk in the serialized service.
+	public final int total;		//The length of the serialized service.
+	public final byte[] data;	//The bytes of this chunk.
+
+	/**
+	 * Create a new chunk.
+	 * @param version The version of the service copied.
+	 * @param offset The offset of this chunk in the serialized service.
+	 * @param total The length of the serialized service.
+	 * @param data The bytes of this chunk.
+	 */
+	public SnapshotChunk(long version, int offset, int total, byte[] data){
+		this.version = version;
+		this.offset = offset;
+		this.total = total;
+		this.data = data;
+	}
+
+	@Override
+	public String toString(){
+		return "[version " + version + ", " + offset + "+" + data.length + " of " + total + "]";
+	}
+}
@@ -1,26 +1,76 @@
 package server;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 
 import exceptions.*;
 
 /**
- * TheaterService deals with core functions of seate reservation service.
+ * TheaterService deals with core functions of seate reservation service. Empty seats are kept in a SeatMap, and the seats
+ * of each client in an int array which is never changed once stored, so snapshots can share it.
+ *
+ * Every version also has a digest, which folds in all operations that led to it, so two services at the same version
+ * with the same digest hold the same reservations. The recent operations are kept so that a server which is a few
+ * versions behind can be sent only those it misses (see tailAfter()).
  *
  */
 public class TheaterService implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+	private static final int HISTORY = 4096;	//The number of recent operations kept for tailAfter()
 	
-	private HashMap<String, HashSet<Integer>> reservedSeats; //Name to reserved seates.
-	Stack <Integer> emptySeats = new Stack <Integer>();
+	/**
+	 * An operation applied, with the version and digest of the service after it.
+	 */
+	private static class Applied{
+		final long version;
+		final long digest;
+		final TheaterUpdate.Operation op;
+
+		Applied(long version, long digest, TheaterUpdate.Operation op){
+			this.version = version;
+			this.digest = digest;
+			this.op = op;
+		}
+	}
 	
-	public TheaterService(int numOfSeats) {
-		for(int i = 1; i <= numOfSeats; i++){
-			emptySeats.push(i);
+	/**
+	 * The result of one entry of reserveGroup(): the seats reserved, or why none were.
+	 */
+	public static class Booking{
+		public final String name;
+		public final int count;
+		public final HashSet<Integer> seats;	//The seats reserved, null if the reservation failed
+		public final Exception failure;			//Why the reservation failed, null if it succeeded
+
+		Booking(String name, int count, HashSet<Integer> seats, Exception failure){
+			this.name = name;
+			this.count = count;
+			this.seats = seats;
+			this.failure = failure;
 		}
-		reservedSeats  = new HashMap<String, HashSet<Integer>>();
+	}
+	
+	private transient HashMap<String, int[]> reservedSeats; //Name to reserved seates, written by writeObject().
+	private SeatMap seats;		//The empty seats.
+	private long version = 0;	//Increased by one on every successful reservation or deletion.
+	private long digest = 0;	//The digest of the operations up to the current version.
+	private transient ArrayList<TheaterUpdate.Operation> journal;	//Operations applied since the last call of takeUpdate()
+	private transient TheaterSnapshot snapshot;	//The last snapshot taken, null if none has been taken yet.
+	private transient HashMap<String, int[]> changes;	//Name to its seats, null if it has none anymore, for the names changed since the last snapshot. Null while no snapshot has been taken.
+	private transient Object snapshotLock;	//Taken to build a snapshot, before the lock of this service.
+	private transient ArrayDeque<Applied> history;	//The recent operations, oldest first, null if there is none.
+	private transient long historyDigest;	//The digest before the oldest operation in history.
+	private transient WriteAheadLog log;	//The log the changes are appended to, null if they are not logged.
+	private transient HashMap<String, HashSet<Integer>> deleted;	//Name to the seats deleted before their escrow reservation was merged here, null if none. See merge().
+	
+	public TheaterService(int numOfSeats) {
+		seats = new SeatMap(numOfSeats);
+		reservedSeats  = new HashMap<String, int[]>();
+		snapshotLock = new Object();
 	}
 	/**
 	 * Reserve certain number of seats for client.
@@ -30,25 +80,43 @@ public class TheaterService implements Serializable {
 	 * @throws NoEnoughSeatesException When there is no enough seats.
 	 * @throws RepeateReservationException When the client has already reserved seats.
 	 */
-	public HashSet<Integer> reserve(String name, int count) throws NoEnoughSeatsException, RepeateReservationException{
-		
-		HashSet<Integer> set = new HashSet <Integer> ();
+	public synchronized HashSet<Integer> reserve(String name, int count) throws NoEnoughSeatsException, RepeateReservationException{
 		//If the client has already reserved seats, then throws an exception
 		if(reservedSeats.containsKey(name)) { 
-			throw new RepeateReservationException(reservedSeats.get(name));
+			throw new RepeateReservationException(toSet(reservedSeats.get(name)));
 		}
 		//If there is no enough seats, then throws an exception
-		if(count > emptySeats.size()){
-			System.out.println(count + "empty seats left: " + emptySeats.size());
+		if(count > seats.freeCount()){
+			System.out.println(count + "empty seats left: " + seats.freeCount());
 			throw new NoEnoughSeatsException();
 		}
-		while(count != 0){
-			set.add(emptySeats.pop());
-			count--;
-		}
+		int[] taken = seats.take(count);
 		//Add a new name and his/her reserved seats
-		reservedSeats.put(name, set);
-		return set;
+		reservedSeats.put(name, taken);
+		HashSet<Integer> set = toSet(taken);
+		record(new TheaterUpdate.Operation(name, true, set));
+		return new HashSet<Integer>(set);
+	}
+	
+	/**
+	 * Reserve seats for many clients at once. Every entry is reserved as with reserve(), in order, and no other operation
+	 * on this service can come in between. An entry which fails does not undo or stop the others.
+	 * @param names The names of the clients.
+	 * @param counts The number of seats for each client.
+	 * @return The result of each entry, in order.
+	 */
+	public synchronized Booking[] reserveGroup(String[] names, int[] counts){
+		Booking[] ret = new Booking[names.length];
+		for(int i = 0; i < names.length; i++){
+			try {
+				ret[i] = new Booking(names[i], counts[i], reserve(names[i], counts[i]), null);
+			} catch (NoEnoughSeatsException e) {
+				ret[i] = new Booking(names[i], counts[i], null, e);
+			} catch (RepeateReservationException e) {
+				ret[i] = new Booking(names[i], counts[i], null, e);
+			}
+		}
+		return ret;
 	}
 	
 	/**
@@ -57,10 +125,10 @@ public class TheaterService implements Serializable {
 	 * @return The result.
 	 * @throws NoReservationInfoException When cannot find information.
 	 */
-	public HashSet<Integer> search(String name) throws NoReservationInfoException{
+	public synchronized HashSet<Integer> search(String name) throws NoReservationInfoException{
 		System.out.println(name);
 		if(reservedSeats.containsKey(name)) {
-			return reservedSeats.get(name);
+			return toSet(reservedSeats.get(name));
 		}else {
 			throw new NoReservationInfoException();
 		}
@@ -72,15 +140,15 @@ public class TheaterService implements Serializable {
 	 * @return The number of seates released.
 	 * @throws NoReservationInfoException If cannot find the information of the client.
 	 */
-	public int[] delete(String name) throws NoReservationInfoException{
-		if(reservedSeats.containsKey(name)) {
+	public synchronized int[] delete(String name) throws NoReservationInfoException{
+		int[] released = reservedSeats.remove(name);
+		if(released != null) {
 			int[] num = new int[2];
-			num[0] = reservedSeats.get(name).size();
-			for(Integer No : reservedSeats.get(name))
-				emptySeats.add(No);
-			num[1] = emptySeats.size();
-			reservedSeats.remove(name);
-			assert(!reservedSeats.containsKey(name));
+			num[0] = released.length;
+			for(int No : released)
+				seats.release(No);
+			num[1] = seats.freeCount();
+			record(new TheaterUpdate.Operation(name, false, toSet(released)));
 			return num;
 		}else {
 			throw new NoReservationInfoException();
@@ -91,7 +159,435 @@ public class TheaterService implements Serializable {
 	 * Return the number of remaining seates.
 	 * @return The number of seates.
 	 */
-	public int remainSeates(){
-		return emptySeats.size();
+	public synchronized int remainSeates(){
+		return seats.freeCount();
+	}
+	
+	/**
+	 * Return the version of this service.
+	 * @return The version.
+	 */
+	public synchronized long version(){
+		return version;
+	}
+	
+	/**
+	 * Take the operations applied by reserve() and delete() since the last call of this method as an update.
+	 * @return The update, which may contain no operation.
+	 */
+	public synchronized TheaterUpdate takeUpdate(){
+		ArrayList<TheaterUpdate.Operation> ops = journal == null? new ArrayList<TheaterUpdate.Operation>(): journal;
+		journal = null;
+		return new TheaterUpdate(version - ops.size(), version, ops);
+	}
+	
+	/**
+	 * Apply an update made by another server.
+	 * @param update The update.
+	 * @return True if the update is applied or is already included in this service, false if this service is not at the
+	 * base version of the update (some updates are missing).
+	 */
+	public synchronized boolean apply(TheaterUpdate update){
+		if(update.version <= version) return true;	//Already have it
+		if(update.baseVersion != version) return false;
+		for(TheaterUpdate.Operation op : update.operations){
+			if(op.reserve)
+				addSeats(op.name, op.seats);
+			else{
+				HashSet<Integer> missing = removeSeats(op.name, op.seats);
+				if(missing != null){	//Reserved from the escrow quota of a server whose reservation has not arrived yet
+					if(deleted == null) deleted = new HashMap<String, HashSet<Integer>>();
+					HashSet<Integer> d = deleted.get(op.name);
+					if(d == null) deleted.put(op.name, missing);
+					else d.addAll(missing);
+				}
+			}
+			advance(op);
+		}
+		version = update.version;
+		return true;
+	}
+	
+	/**
+	 * Return the operations applied after a version, if this service went through that version with the same digest.
+	 * @param base The version.
+	 * @param baseDigest The digest at that version.
+	 * @return The update from that version to the current one, or null if the operations are no longer kept or the
+	 * histories differ.
+	 */
+	public synchronized TheaterUpdate tailAfter(long base, long baseDigest){
+		ArrayList<TheaterUpdate.Operation> ops = new ArrayList<TheaterUpdate.Operation>();
+		if(base == version)
+			return baseDigest == digest? new TheaterUpdate(base, version, ops): null;
+		if(base > version || history == null || history.isEmpty() || base < history.peekFirst().version - 1)
+			return null;
+		long at = historyDigest;
+		for(Applied a : history){
+			if(a.version <= base) at = a.digest;
+			else ops.add(a.op);
+		}
+		return at == baseDigest? new TheaterUpdate(base, version, ops): null;
+	}
+	
+	/**
+	 * Return the version and its digest.
+	 * @return The version and the digest.
+	 */
+	public synchronized long[] position(){
+		return new long[]{version, digest};
+	}
+	
+	/**
+	 * Apply an operation read back from the write-ahead log.
+	 * @param v The version after the operation, -1 if it was an escrow reservation.
+	 * @param op The operation.
+	 */
+	synchronized void replay(long v, TheaterUpdate.Operation op){
+		if(v < 0){
+			addSeats(op.name, op.seats);
+			return;
+		}
+		if(v <= version) return;	//Already in the checkpoint
+		if(op.reserve)
+			addSeats(op.name, op.seats);
+		else
+			removeSeats(op.name, op.seats);	//Seats deleted before their reservation arrived need not be kept, merge() logged only those it reserved.
+		version = v - 1;
+		advance(op);
+	}
+	
+	/**
+	 * Append the changes of this service to a log from now on.
+	 * @param l The log, null to stop logging.
+	 */
+	synchronized void setLog(WriteAheadLog l){
+		log = l;
+	}
+	
+	/**
+	 * Reserve the given empty seats for a client. Unlike reserve(), this method does not change the version, because it
+	 * is used for seats that the calling server owns exclusively (see SeatEscrow).
+	 * @param name The name of client.
+	 * @param seats The seats to reserve, which must be empty.
+	 * @throws RepeateReservationException When the client has already reserved seats.
+	 */
+	public synchronized void reserveSeats(String name, Set<Integer> seats) throws RepeateReservationException{
+		if(reservedSeats.containsKey(name))
+			throw new RepeateReservationException(toSet(reservedSeats.get(name)));
+		addSeats(name, seats);
+		if(log != null)
+			log.append(-1, new TheaterUpdate.Operation(name, true, new HashSet<Integer>(seats)));
+	}
+	
+	/**
+	 * Apply a reservation made by another server with reserveSeats(). If the client already has seats, which happens when
+	 * two servers reserve for the same name at the same time, the seats are merged so that every server ends up with the
+	 * same result. A reservation comes on its own connection, so a server which saw it may have deleted it already, and
+	 * that deletion may have been applied here first: the seats it deleted are not reserved again.
+	 * @param op The reservation.
+	 */
+	public synchronized void merge(TheaterUpdate.Operation op){
+		assert(op.reserve);
+		HashSet<Integer> add = undeleted(op);
+		if(add.isEmpty()) return;
+		addSeats(op.name, add);
+		if(log != null)
+			log.append(-1, new TheaterUpdate.Operation(op.name, true, add));
+	}
+	
+	/**
+	 * Apply a reservation made by another server with reserveSeats(), on those of its seats which are empty in this
+	 * service. This is for a reservation which may already be here, or whose seats may have been reserved again since.
+	 * @param op The reservation.
+	 */
+	public synchronized void mergeEmpty(TheaterUpdate.Operation op){
+		HashSet<Integer> add = new HashSet<Integer>();
+		for(int No : undeleted(op))
+			if(seats.isFree(No))
+				add.add(No);
+		if(add.isEmpty()) return;
+		addSeats(op.name, add);
+		if(log != null)
+			log.append(-1, new TheaterUpdate.Operation(op.name, true, add));
+	}
+	
+	/**
+	 * Add the reservations of a service which this one replaces and which this one does not have, on the seats empty here.
+	 * Reservations made from an escrow quota do not change the version, so a newer service may still miss some.
+	 * @param old The service replaced.
+	 */
+	synchronized void keep(TheaterService old){
+		HashMap<String, int[]> theirs;
+		synchronized(old){
+			theirs = new HashMap<String, int[]>(old.reservedSeats);
+		}
+		for(Map.Entry<String, int[]> entry : theirs.entrySet())
+			mergeEmpty(new TheaterUpdate.Operation(entry.getKey(), true, toSet(entry.getValue())));
+	}
+	
+	/**
+	 * Return the deletions applied after a version.
+	 * @param base The version.
+	 * @return The deletions, oldest first, or null if the operations after that version are no longer kept.
+	 */
+	public synchronized ArrayList<TheaterUpdate.Operation> deletionsAfter(long base){
+		ArrayList<TheaterUpdate.Operation> ops = new ArrayList<TheaterUpdate.Operation>();
+		if(base >= version) return ops;
+		if(history == null || history.isEmpty() || base < history.peekFirst().version - 1)
+			return null;
+		for(Applied a : history)
+			if(a.version > base && !a.op.reserve)
+				ops.add(a.op);
+		return ops;
+	}
+	
+	/**
+	 * Return an immutable snapshot of the reservations. The snapshot is taken again only after the service has changed,
+	 * from the last one and the names changed since, and outside the lock of this service so that writes go on meanwhile.
+	 * @return The snapshot.
+	 */
+	public TheaterSnapshot snapshot(){
+		synchronized(snapshotLock){
+			TheaterSnapshot last;
+			HashMap<String, int[]> changed;
+			long v;
+			synchronized(this){
+				if(snapshot == null){	//The first one copies every reservation.
+					snapshot = new TheaterSnapshot(version, new HashMap<String, int[]>(reservedSeats));
+					changes = new HashMap<String, int[]>();
+					return snapshot;
+				}
+				if(snapshot.version == version && changes.isEmpty())
+					return snapshot;
+				last = snapshot;
+				changed = changes;
+				changes = new HashMap<String, int[]>();	//The changes after this snapshot
+				v = version;
+			}
+			TheaterSnapshot next = last.with(v, changed);
+			synchronized(this){
+				snapshot = next;
+			}
+			return next;
+		}
+	}
+	
+	/**
+	 * Return a copy of this service at its current version, which can be serialized without locking this one. The seat
+	 * map and the map of names are copied, but not the seats of each client, which never change once stored.
+	 * @return The copy.
+	 */
+	public synchronized TheaterService copy(){
+		TheaterService c = new TheaterService(0);
+		c.seats = new SeatMap(seats);
+		c.reservedSeats = new HashMap<String, int[]>(reservedSeats);
+		c.version = version;
+		c.digest = digest;
+		return c;
+	}
+	
+	/**
+	 * Return the operations that turn a copy made by copy() into this service: the clients whose seats differ are deleted,
+	 * then reserved again with their current seats. Reservations which have not changed since the copy are the same
+	 * arrays, so they are skipped at once.
+	 * @param base The copy, which must not be changed anymore.
+	 * @return The update from the version of the copy to the current one.
+	 */
+	public synchronized TheaterUpdate diffFrom(TheaterService base){
+		ArrayList<TheaterUpdate.Operation> deletes = new ArrayList<TheaterUpdate.Operation>();
+		for(Map.Entry<String, int[]> entry : base.reservedSeats.entrySet()){
+			int[] now = reservedSeats.get(entry.getKey());
+			if(now != entry.getValue() && !Arrays.equals(now, entry.getValue()))
+				deletes.add(new TheaterUpdate.Operation(entry.getKey(), false, toSet(entry.getValue())));
+		}
+		ArrayList<TheaterUpdate.Operation> ops = deletes;
+		for(Map.Entry<String, int[]> entry : reservedSeats.entrySet()){
+			int[] old = base.reservedSeats.get(entry.getKey());
+			if(old != entry.getValue() && !Arrays.equals(old, entry.getValue()))
+				ops.add(new TheaterUpdate.Operation(entry.getKey(), true, toSet(entry.getValue())));
+		}
+		return new TheaterUpdate(base.version, version, ops);
+	}
+	
+	/**
+	 * Return a copy of the empty seats.
+	 * @return The empty seats.
+	 */
+	public synchronized HashSet<Integer> emptySeats(){
+		return toSet(seats.freeSeats());
+	}
+	
+	/**
+	 * Mark seats as reserved by a client, keeping the seats the client already has.
+	 * @param name The name of client.
+	 * @param add The seats.
+	 */
+	private void addSeats(String name, Set<Integer> add){
+		int[] old = reservedSeats.get(name);
+		HashSet<Integer> set = old == null? new HashSet<Integer>(): toSet(old);
+		for(int No : add){
+			seats.occupy(No);
+			set.add(No);
+		}
+		reservedSeats.put(name, toArray(set));
+		changed(name);
+	}
+	
+	/**
+	 * Return the seats of an escrow reservation which have not been deleted here before it arrived, and forget those which
+	 * have.
+	 * @param op The reservation.
+	 * @return The seats to reserve.
+	 */
+	private HashSet<Integer> undeleted(TheaterUpdate.Operation op){
+		HashSet<Integer> add = new HashSet<Integer>(op.seats);
+		HashSet<Integer> d = deleted == null? null: deleted.get(op.name);
+		if(d == null) return add;
+		for(Iterator<Integer> it = add.iterator(); it.hasNext();)
+			if(d.remove(it.next()))
+				it.remove();
+		if(d.isEmpty()) deleted.remove(op.name);
+		return add;
+	}
+	
+	/**
+	 * Release some seats of a client. Seats the client got after they were shipped by another server are kept, and seats
+	 * the client does not have are left as they are.
+	 * @param name The name of client.
+	 * @param remove The seats.
+	 * @return The seats the client does not have, null if it has all of them.
+	 */
+	private HashSet<Integer> removeSeats(String name, Set<Integer> remove){
+		int[] old = reservedSeats.get(name);
+		HashSet<Integer> set = old == null? new HashSet<Integer>(): toSet(old);
+		HashSet<Integer> missing = null;
+		for(int No : remove){
+			if(set.remove(No))
+				seats.release(No);
+			else{
+				if(missing == null) missing = new HashSet<Integer>();
+				missing.add(No);
+			}
+		}
+		if(old != null && set.size() < old.length){
+			if(set.isEmpty()) reservedSeats.remove(name);
+			else reservedSeats.put(name, toArray(set));
+			changed(name);
+		}
+		return missing;
+	}
+	
+	/**
+	 * Record a local operation so that it can be shipped to other servers.
+	 * @param op The operation.
+	 */
+	private void record(TheaterUpdate.Operation op){
+		if(journal == null) journal = new ArrayList<TheaterUpdate.Operation>();
+		journal.add(op);
+		advance(op);
+		changed(op.name);
+	}
+
+	/**
+	 * Note that the seats of a client have changed, for the next snapshot.
+	 * @param name The name of client.
+	 */
+	private void changed(String name){
+		if(changes != null)
+			changes.put(name, reservedSeats.get(name));
+	}
+	
+	/**
+	 * Move to the next version after an operation: update the digest, keep the operation in the history and log it.
+	 * @param op The operation.
+	 */
+	private void advance(TheaterUpdate.Operation op){
+		if(history == null) history = new ArrayDeque<Applied>();
+		if(history.isEmpty()) historyDigest = digest;
+		version++;
+		digest = digest(digest, op);
+		history.addLast(new Applied(version, digest, op));
+		if(history.size() > HISTORY)
+			historyDigest = history.pollFirst().digest;
+		if(log != null)
+			log.append(version, op);
+	}
+	
+	/**
+	 * Fold an operation into a digest. The order of the seats does not matter.
+	 * @param digest The digest before the operation.
+	 * @param op The operation.
+	 * @return The digest after it.
+	 */
+	private static long digest(long digest, TheaterUpdate.Operation op){
+		long h = op.name.hashCode() * 0x9E3779B97F4A7C15L + (op.reserve? 1: 2);
+		for(int No : op.seats)
+			h += mix(No);
+		return mix(Long.rotateLeft(digest, 17) ^ h);
+	}
+	
+	/**
+	 * Scramble the bits of a number (the finalizer of MurmurHash3).
+	 * @param x The number.
+	 * @return The scrambled number.
+	 */
+	private static long mix(long x){
+		x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+		x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return x ^ (x >>> 33);
+	}
+	
+	/**
+	 * Convert seat numbers to a set.
+	 * @param a The seat numbers.
+	 * @return The set.
+	 */
+	static HashSet<Integer> toSet(int[] a){
+		HashSet<Integer> ret = new HashSet<Integer>();
+		for(int No : a)
+			ret.add(No);
+		return ret;
+	}
+	
+	/**
+	 * Convert a set of seat numbers to an array.
+	 * @param set The set.
+	 * @return The seat numbers.
+	 */
+	private static int[] toArray(Set<Integer> set){
+		int[] ret = new int[set.size()];
+		int i = 0;
+		for(int No : set)
+			ret[i++] = No;
+		return ret;
+	}
+	
+	/**
+	 * Serialize this service while no operation is being applied. Reservations are written as plain ints instead of
+	 * boxed sets.
+	 */
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException{
+		out.defaultWriteObject();
+		out.writeInt(reservedSeats.size());
+		for(Map.Entry<String, int[]> entry : reservedSeats.entrySet()){
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().length);
+			for(int No : entry.getValue())
+				out.writeInt(No);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		int n = in.readInt();
+		reservedSeats = new HashMap<String, int[]>(n * 2);
+		for(int i = 0; i < n; i++){
+			String name = in.readUTF();
+			int[] a = new int[in.readInt()];
+			for(int j = 0; j < a.length; j++)
+				a[j] = in.readInt();
+			reservedSeats.put(name, a);
+		}
+		snapshotLock = new Object();
 	}
 }
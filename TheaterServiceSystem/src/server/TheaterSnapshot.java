@@ -0,0 +1,74 @@
+package server;
+
+import java.util.*;
+
+import exceptions.NoReservationInfoException;
+
+/**
+ * TheaterSnapshot is an immutable copy of the reservations of a TheaterService at some version. It can be read by any
+ * number of threads without locking.
+ *
+ * A snapshot is copied on write: a later one shares the reservations of this one and only keeps the names changed since,
+ * which are folded into a new map once they are more than a small part of it. So taking a snapshot after each write
+ * costs about the changes, and not every reservation.
+ *
+ */
+public class TheaterSnapshot {
+	
+	private static final int MIN_CHANGES = 64;	//The names changed kept apart at least, however few the reservations
+	private static final int CHANGES_RATIO = 64;	//And one more for this number of reservations
+
+	public final long version;		//The version of the service this snapshot was taken at.
+	private final Map<String, int[]> reservedSeats;	//Name to reserved seats at some earlier version, neither the map nor the arrays are changed.
+	private final Map<String, int[]> changes;		//Name to reserved seats, null if none, for the names changed since reservedSeats. Not changed either.
+	
+	/**
+	 * Create a snapshot. The caller must not change the map or its arrays afterwards.
+	 * @param version The version of the service.
+	 * @param reservedSeats Name to reserved seats.
+	 */
+	TheaterSnapshot(long version, Map<String, int[]> reservedSeats){
+		this(version, reservedSeats, Collections.<String, int[]>emptyMap());
+	}
+
+	private TheaterSnapshot(long version, Map<String, int[]> reservedSeats, Map<String, int[]> changes){
+		this.version = version;
+		this.reservedSeats = reservedSeats;
+		this.changes = changes;
+	}
+
+	/**
+	 * Return a later snapshot, made of this one with some names changed. The maps and arrays of this one are shared, and
+	 * it is not changed.
+	 * @param version The version of the service.
+	 * @param changed Name to reserved seats, null for a name which has none anymore.
+	 * @return The snapshot.
+	 */
+	TheaterSnapshot with(long version, Map<String, int[]> changed){
+		if(changed.isEmpty())
+			return new TheaterSnapshot(version, reservedSeats, changes);
+		HashMap<String, int[]> all = new HashMap<String, int[]>(changes);
+		all.putAll(changed);
+		if(all.size() <= MIN_CHANGES + reservedSeats.size() / CHANGES_RATIO)
+			return new TheaterSnapshot(version, reservedSeats, all);
+		HashMap<String, int[]> map = new HashMap<String, int[]>(reservedSeats);	//Fold the changes in
+		for(Map.Entry<String, int[]> entry : all.entrySet()){
+			if(entry.getValue() == null) map.remove(entry.getKey());
+			else map.put(entry.getKey(), entry.getValue());
+		}
+		return new TheaterSnapshot(version, map);
+	}
+	
+	/**
+	 * Search the seates reserved by a client.
+	 * @param name The name of client.
+	 * @return The result.
+	 * @throws NoReservationInfoException When cannot find information.
+	 */
+	public Set<Integer> search(String name) throws NoReservationInfoException{
+		int[] ret = changes.containsKey(name)? changes.get(name): reservedSeats.get(name);
+		if(ret == null)
+			throw new NoReservationInfoException();
+		return TheaterService.toSet(ret);
+	}
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * TheaterUpdate is a delta of a TheaterService. It holds the operations applied by a writer during one critical section,
+ * and the versions of the service before and after them.
+ *
+ */
+public class TheaterUpdate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+	public final long baseVersion;	//The version of the service these operations were applied to.
+	public final long version;		//The version of the service after applying these operations.
+	public final ArrayList<Operation> operations;	//The operations, in the order they were applied.
+	
+	/**
+	 * A single reservation or deletion.
+	 */
+	public static class Operation implements Serializable{
+		
+		private static final long serialVersionUID = 1L;
+		
+		public final String name;				//The name of client.
+		public final boolean reserve;			//True if seats were reserved, false if they were released.
+		public final HashSet<Integer> seats;	//The seats reserved or released.
+		
+		/**
+		 * Create a new operation.
+		 * @param name The name of client.
+		 * @param reserve True if seats were reserved, false if they were released.
+		 * @param seats The seats reserved or released.
+		 */
+		public Operation(String name, boolean reserve, HashSet<Integer> seats){
+			this.name = name;
+			this.reserve = reserve;
+			this.seats = seats;
+		}
+		
+		@Override
+		public String toString(){
+			return (reserve? "reserve ": "delete ") + name + " " + seats;
+		}
+	}
+	
+	/**
+	 * Create a new update.
+	 * @param baseVersion The version of the service these operations were applied to.
+	 * @param version The version of the service after applying these operations.
+	 * @param operations The operations.
+	 */
+	public TheaterUpdate(long baseVersion, long version, ArrayList<Operation> operations){
+		this.baseVersion = baseVersion;
+		this.version = version;
+		this.operations = operations;
+	}
+	
+	@Override
+	public String toString(){
+		return "[" + baseVersion + " -> " + version + ", " + operations + "]";
+	}
+}
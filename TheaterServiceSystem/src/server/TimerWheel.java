@@ -0,0 +1,123 @@
+package server;
+
+import java.util.*;
+
+/**
+ * TimerWheel is a hashed timing wheel: a single thread runs the tasks scheduled after a delay, so that timeouts do not
+ * need a thread each. Time is cut into ticks, and a task is kept in the bucket of the tick it is due at (modulo the
+ * number of buckets), so scheduling and cancelling take constant time. Tasks run on the wheel thread and must be short.
+ *
+ */
+public class TimerWheel {
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public static class Timeout{
+		private final Runnable task;	//The task to run when due
+		private final long deadline;	//The tick the task is due at
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline){
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the task. It is not run if it has not been run yet.
+		 */
+		public void cancel(){
+			cancelled = true;
+		}
+	}
+
+	private static TimerWheel shared = null;	//The wheel used by this process
+
+	private final long tickMs;		//The length of a tick(ms)
+	private final ArrayList<LinkedList<Timeout>> buckets;	//Tasks by the tick they are due at, modulo the number of buckets
+	private long tick = 0;			//The current tick, guarded by buckets
+	private final long start = System.nanoTime();
+
+	/**
+	 * Create a wheel and start its thread.
+	 * @param tickMs The length of a tick(ms), which is the precision of the delays.
+	 * @param size The number of buckets. Tasks due more than size ticks later stay in their bucket for more rounds.
+	 */
+	public TimerWheel(long tickMs, int size){
+		this.tickMs = tickMs;
+		buckets = new ArrayList<LinkedList<Timeout>>(size);
+		for(int i = 0; i < size; i++)
+			buckets.add(new LinkedList<Timeout>());
+		Thread thread = new Thread("timer-wheel"){
+			@Override
+			public void run(){
+				turn();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Return the wheel shared by this process, with ticks of 10ms.
+	 * @return The wheel.
+	 */
+	public static synchronized TimerWheel shared(){
+		if(shared == null)
+			shared = new TimerWheel(10, 512);
+		return shared;
+	}
+
+	/**
+	 * Run a task after a delay.
+	 * @param task The task.
+	 * @param delayMs The delay(ms). The task runs at most one tick later.
+	 * @return The handle to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delayMs){
+		synchronized(buckets){
+			long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+			Timeout t = new Timeout(task, tick + ticks);
+			buckets.get((int) (t.deadline % buckets.size())).add(t);
+			return t;
+		}
+	}
+
+	/**
+	 * Advance the wheel one tick at a time, running the tasks which are due.
+	 */
+	private void turn(){
+		ArrayList<Timeout> due = new ArrayList<Timeout>();
+		while(true){
+			long now;
+			synchronized(buckets){
+				now = ++tick;
+			}
+			long sleep = now * tickMs - (System.nanoTime() - start) / 1000000;
+			if(sleep > 0)
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {}
+			synchronized(buckets){
+				Iterator<Timeout> it = buckets.get((int) (now % buckets.size())).iterator();
+				while(it.hasNext()){
+					Timeout t = it.next();
+					if(t.cancelled)
+						it.remove();
+					else if(t.deadline <= now){
+						it.remove();
+						due.add(t);
+					}
+				}
+			}
+			for(Timeout t : due){
+				try{
+					t.task.run();
+				}catch(RuntimeException e){
+					e.printStackTrace();
+				}
+			}
+			due.clear();
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+import message.*;
+
+/**
+ * TokenMutualExclusion is the Suzuki-Kasami token based mutual exclusion algorithm. Only the holder of the token may enter
+ * the critical section. A server without the token broadcasts a request, and the holder passes the token when it leaves
+ * the critical section. Entering while holding the token costs no message, otherwise it costs N messages. Readers are
+ * treated as writers.
+ *
+ */
+public class TokenMutualExclusion extends MutualExclusion {
+	
+	/**
+	 * The token. It carries the request number each server was last granted with, and the queue of waiting servers.
+	 */
+	private static class Token implements Serializable{
+		
+		private static final long serialVersionUID = 1L;
+		
+		public final long[] ln;		//ln[j] is the request number of server j which was granted most recently.
+		public final LinkedList<Integer> queue = new LinkedList<Integer>();	//Servers waiting for the token.
+		public final long epoch;	//Increased every time the token is regenerated.
+		public long passes = 0;		//The number of times this token has been passed.
+		public long version = 0;	//The version of the theater service when the token was released.
+		
+		public Token(int n, long epoch){
+			ln = new long[n];
+			this.epoch = epoch;
+		}
+	}
+	
+	private final long[] rn;			//rn[j] is the largest request number received from server j.
+	private Token token = null;			//The token, null if this server does not hold it.
+	private Process tokenFrom = null;	//The server who passed the token to this server.
+	private boolean inCS = false;		//If a thread of this server is in the critical section.
+	private boolean requesting = false;	//If a thread of this server is waiting for the token.
+	private long epoch = 0;				//The largest token epoch seen.
+	private long passes = 0;			//The largest pass count of the token seen.
+	private int passedTo = -1;			//The server this server passed the token to at that count, -1 if it did not.
+	private final Semaphore local_lock = new Semaphore(1);	//Lock to ensure that only one thread of this server holds or waits for the token
+	
+	/**
+	 * Create the protocol for a section.
+	 * @param section The section.
+	 * @param n The number of servers in the cluster.
+	 */
+	public TokenMutualExclusion(Section section, int n){
+		super(section);
+		rn = new long[n];
+	}
+	
+	@Override
+	public synchronized void onClusterCreated(){
+		token = new Token(rn.length, epoch);	//The first server creates the token
+	}
+	
+	@Override
+	public void requestCriticalSection(boolean read) throws IOException {
+		long start = System.nanoTime();
+		try {
+			local_lock.acquire();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		long n = 0;
+		synchronized(this){
+			if(token == null){
+				requesting = true;
+				n = ++rn[Server.pid];
+			}else
+				inCS = true;
+		}
+		if(n > 0){
+			//Broadcast the request, then wait for the token.
+			for(Process process : Server.clusterInfo.values()){
+				if(!process.live || process.pid == Server.pid) continue;
+				try {
+					send(process, section.message(MessageType.TOKEN_REQUEST, n));
+				} catch (IOException e) {}
+			}
+			synchronized(this){
+				while(token == null)
+					try {
+						wait();
+					} catch (InterruptedException e) {}
+				requesting = false;
+				inCS = true;
+			}
+			//The token may arrive before the writes of its previous holder.
+			section.awaitVersion(token.version, tokenFrom);
+		}
+		section.awaitFreshState();
+		entered(start);
+	}
+	
+	@Override
+	public void releaseCriticalSection(boolean read, Serializable state) throws IOException{
+		if(state != null){
+			//Ship the writes before the token, so that the next holder can get them first.
+			for(Process process : Server.clusterInfo.values()){
+				if(!process.live || process.pid == Server.pid) continue;
+				try {
+					send(process, section.message(MessageType.STATE_UPDATE, state));
+				} catch (IOException e) {}
+			}
+		}
+		synchronized(this){
+			assert(token != null && inCS);
+			token.version = section.version();
+			token.ln[Server.pid] = rn[Server.pid];
+			for(int i = 1; i < rn.length; i++){
+				int j = (Server.pid + i) % rn.length;
+				if(rn[j] == token.ln[j] + 1 && !token.queue.contains(j))
+					token.queue.add(j);
+			}
+			inCS = false;
+		}
+		passToken();
+		local_lock.release();
+	}
+	
+	/**
+	 * Pass the token to the first live server in its queue, if this server holds the token and is not using it.
+	 */
+	private void passToken(){
+		while(true){
+			Token t;
+			Process next;
+			synchronized(this){
+				if(token == null || inCS || requesting || token.queue.isEmpty()) return;
+				next = Server.clusterInfo.get(token.queue.poll());
+				if(!next.live) continue;
+				t = token;
+				token = null;
+				t.passes++;
+				passes = t.passes;
+				passedTo = next.pid;
+			}
+			try {
+				send(next, section.message(MessageType.TOKEN, t));
+				return;
+			} catch (IOException e) {
+				synchronized(this){	//Keep it and try the next one
+					token = t;
+					passedTo = -1;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public boolean onReceivingMessage(Message msg, Process process) throws IOException{
+		switch(msg.type){
+			case TOKEN_REQUEST:
+				synchronized(this){
+					int j = msg.clk.pid;
+					rn[j] = Math.max(rn[j], (Long) msg.content);
+					if(token != null && rn[j] == token.ln[j] + 1 && !token.queue.contains(j))
+						token.queue.add(j);
+				}
+				passToken();
+				return true;
+				
+			case TOKEN:
+				Token t = (Token) msg.content;
+				synchronized(this){
+					if(t.epoch < epoch){
+						System.out.println("Dropped a token of epoch "+t.epoch+", current epoch is "+epoch);
+						return true;
+					}
+					epoch = t.epoch;
+					token = t;
+					tokenFrom = process;
+					passes = t.passes;
+					passedTo = -1;
+					notifyAll();
+				}
+				passToken();	//In case nobody here is waiting for it
+				return true;
+				
+			case TOKEN_QUERY:
+				long[] status;
+				synchronized(this){
+					status = new long[]{token != null? 1: 0, passes, passedTo, rn[Server.pid], requesting? 1: 0, epoch};
+				}
+				send(process, section.message(MessageType.TOKEN_STATUS, status));
+				return true;
+				
+			default:
+				return false;
+		}
+	}
+	
+	@Override
+	public void onProcessDied(Process process){
+		if(!Server.ready) return;	//Servers found dead while joining never had the token.
+		synchronized(this){
+			if(token != null) return;	//The token is not lost.
+		}
+		//The server with the smallest pid checks if the token is lost with it.
+		for(Process p : Server.clusterInfo.values())
+			if(p.live && p.pid < Server.pid) return;
+		new Thread(){
+			@Override
+			public void run(){
+				regenerate();
+			}
+		}.start();
+	}
+	
+	/**
+	 * Ask every live server about the token, and create a new one if the token was last passed to a dead server. A token
+	 * which a dead server passed on right before dying may still arrive after this; it is dropped by servers that have
+	 * already seen the new epoch, and this window is accepted.
+	 */
+	private void regenerate(){
+		HashMap<Integer, long[]> status = new HashMap<Integer, long[]>();
+		synchronized(this){
+			status.put(Server.pid, new long[]{token != null? 1: 0, passes, passedTo, rn[Server.pid], requesting? 1: 0, epoch});
+		}
+		HashMap<Process, MessageFuture> replies = new HashMap<Process, MessageFuture>();
+		for(Process process : Server.clusterInfo.values()){
+			if(!process.live || process.pid == Server.pid) continue;
+			try {
+				replies.put(process, process.expectMessage(new MessageKey(MessageType.TOKEN_STATUS, section.name, null), Server.MAX_RESPONSE_TIME));
+				send(process, section.message(MessageType.TOKEN_QUERY, null));
+			} catch (IOException e) {}	//If the query is not sent, its reply times out.
+		}
+		for(Map.Entry<Process, MessageFuture> reply : replies.entrySet())
+			try {
+				status.put(reply.getKey().pid, (long[]) reply.getValue().get().content);
+			} catch (IOException e) {
+				Server.onProcessDied(reply.getKey());
+			}
+		
+		long[] latest = null;	//The status of the server who saw the token most recently
+		long maxEpoch = 0;
+		for(long[] s : status.values()){
+			if(s[0] == 1) return;	//Somebody holds it.
+			if(latest == null || s[1] > latest[1]) latest = s;
+			maxEpoch = Math.max(maxEpoch, s[5]);
+		}
+		if(latest[2] >= 0 && Server.clusterInfo.get((int) latest[2]).live) return;	//It is on its way to a live server.
+		
+		synchronized(this){
+			if(token != null) return;
+			Token t = new Token(rn.length, maxEpoch + 1);
+			for(int j = 0; j < rn.length; j++){
+				long[] s = status.get(j);
+				if(s == null){
+					t.ln[j] = rn[j];	//Dead, it will not be waiting.
+				}else{
+					rn[j] = Math.max(rn[j], s[3]);
+					t.ln[j] = s[4] == 1? s[3] - 1: s[3];
+					if(s[4] == 1 && j != Server.pid) t.queue.add(j);
+				}
+			}
+			t.version = section.version();
+			epoch = t.epoch;
+			token = t;
+			tokenFrom = null;
+			System.out.println("Token regenerated with epoch "+epoch);
+			notifyAll();
+		}
+		passToken();
+	}
+	
+	@Override
+	public synchronized Serializable exportState(){
+		return rn.clone();
+	}
+	
+	@Override
+	public synchronized void importState(Serializable state){
+		long[] data = (long[]) state;
+		for(int j = 0; j < rn.length; j++)
+			rn[j] = Math.max(rn[j], data[j]);
+	}
+}
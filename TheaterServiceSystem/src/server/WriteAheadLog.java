@@ -0,0 +1,288 @@
+package server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog keeps the seats of a section on the local disk, so that a restarted server recovers them from its own
+ * files instead of copying the whole theater from another server. Every change of the service is appended to a
+ * memory-mapped log before the client is answered, and when the log grows past a threshold, the whole service is written
+ * as a checkpoint and a new log is started. The directory of a section holds:
+ *
+ *   checkpoint   The generation of the checkpoint (8 bytes) followed by the serialized service.
+ *   wal-<gen>    The changes made after the checkpoint of generation gen, as records: the length of the body (4 bytes),
+ *                the crc32 of the body (4 bytes) and the body. A zero length ends the log.
+ *
+ * A record body is the version of the service after the change (-1 for an escrow reservation, which keeps the version),
+ * whether seats were reserved or released, the client name and the seats. The length is written last, so a record cut
+ * short by a crash is never read back. Records are in the page cache once written, so they survive the crash of the
+ * server process; they reach the disk when the OS writes the pages back, and at the latest on the next checkpoint.
+ *
+ */
+public class WriteAheadLog {
+
+	private static final int MAP_SIZE = 1 << 20;		//The initial size of a log file, doubled when it is full
+	private static final long CHECKPOINT_BYTES = 8 << 20;	//A checkpoint is taken when the log is larger
+	private static final LinkedBlockingQueue<WriteAheadLog> due = new LinkedBlockingQueue<WriteAheadLog>();	//Logs waiting for a checkpoint
+	private static Thread checkpointer = null;	//The thread taking the checkpoints of due logs
+
+	private final File dir;		//The directory of the section
+	private final Object checkpoint_lock = new Object();	//Only one checkpoint at a time
+	private TheaterService service = null;	//The service logged, guarded by this
+	private long generation = 0;			//The generation of the log being written, guarded by this
+	private FileChannel channel = null;		//The log being written, guarded by this
+	private MappedByteBuffer map = null;	//The mapping of the log being written, null if logging failed, guarded by this
+	private boolean checkpointDue = false;	//If this log is queued for a checkpoint, guarded by this
+
+	/**
+	 * Open the log of a section. Nothing is read or written until recover() is called.
+	 * @param dir The directory of the section, created if it does not exist.
+	 * @throws IOException If the directory cannot be created.
+	 */
+	public WriteAheadLog(File dir) throws IOException{
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create "+dir);
+		this.dir = dir;
+		synchronized(WriteAheadLog.class){
+			if(checkpointer == null){
+				checkpointer = new Thread("wal-checkpoint"){
+					@Override
+					public void run(){
+						while(true){
+							try {
+								due.take().checkpoint();
+							} catch (InterruptedException e) {}
+						}
+					}
+				};
+				checkpointer.setDaemon(true);
+				checkpointer.start();
+			}
+		}
+	}
+
+	/**
+	 * Recover the service from the last checkpoint and the logs written after it, then start logging its changes. The
+	 * recovered state is written as a new checkpoint, so the old logs can be deleted.
+	 * @param empty The service to start from if nothing has been logged yet.
+	 * @return The recovered service.
+	 * @throws IOException If the files cannot be read or written.
+	 */
+	public TheaterService recover(TheaterService empty) throws IOException{
+		TheaterService s = empty;
+		long gen = 0;
+		File file = new File(dir, "checkpoint");
+		if(file.exists()){
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try{
+				gen = in.readLong();
+				s = (TheaterService) new ObjectInputStream(in).readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}finally{
+				in.close();
+			}
+		}
+		int records = 0;
+		TreeSet<Long> logs = logGenerations();
+		synchronized(this){	//The next log must be newer than every log left
+			generation = logs.isEmpty()? gen: Math.max(gen, logs.last());
+		}
+		for(long g : logs)
+			if(g >= gen)	//A log older than the checkpoint may be left if the server stopped while deleting it.
+				records += replay(new File(dir, "wal-"+g), s);
+		System.out.println("Recovered "+dir+" at version "+s.version()+" from checkpoint "+gen+" and "+records+" log records");
+		attach(s);
+		return s;
+	}
+
+	/**
+	 * Start logging the changes of a service, which replaces the service logged so far. The service is written as a new
+	 * checkpoint first.
+	 * @param s The service.
+	 * @throws IOException If the checkpoint cannot be written.
+	 */
+	public void attach(TheaterService s) throws IOException{
+		TheaterService old;
+		synchronized(this){
+			old = service;
+		}
+		if(old != null && old != s)
+			old.setLog(null);
+		checkpoint(s);
+	}
+
+	/**
+	 * Write a checkpoint of the service logged, if a service is logged.
+	 */
+	void checkpoint(){
+		TheaterService s;
+		synchronized(this){
+			s = service;
+		}
+		if(s == null) return;
+		try {
+			checkpoint(s);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write a checkpoint of a service and log its changes from now on in a new generation. The service is serialized
+	 * while no change can be made to it, then written to a temporary file which replaces the checkpoint once it is on disk.
+	 * @param s The service.
+	 * @throws IOException If the checkpoint cannot be written.
+	 */
+	private void checkpoint(TheaterService s) throws IOException{
+		synchronized(checkpoint_lock){
+			long start = System.nanoTime();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+			long gen;
+			synchronized(s){	//No change between the checkpoint and the new log
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(s);
+				out.close();
+				synchronized(this){
+					gen = generation + 1;
+					startLog(gen);
+					service = s;
+					checkpointDue = false;
+				}
+				s.setLog(this);
+			}
+			File tmp = new File(dir, "checkpoint.tmp");
+			FileOutputStream out = new FileOutputStream(tmp);
+			try{
+				DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+				data.writeLong(gen);
+				bytes.writeTo(data);
+				data.flush();
+				out.getFD().sync();
+			}finally{
+				out.close();
+			}
+			Files.move(tmp.toPath(), new File(dir, "checkpoint").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			for(long g : logGenerations())	//Everything in them is in the checkpoint now
+				if(g < gen)
+					new File(dir, "wal-"+g).delete();
+			System.out.println("Checkpoint "+gen+" of "+dir+" at version "+s.version()+": "+bytes.size()+" bytes in "
+					+(System.nanoTime() - start) / 1000000+"ms");
+		}
+	}
+
+	/**
+	 * Close the log being written and start a new one. The caller must hold this.
+	 * @param gen The generation of the new log.
+	 * @throws IOException If the log cannot be created.
+	 */
+	private void startLog(long gen) throws IOException{
+		FileChannel c = FileChannel.open(new File(dir, "wal-"+gen).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer m = c.map(FileChannel.MapMode.READ_WRITE, 0, MAP_SIZE);
+		if(map != null)
+			map.force();
+		if(channel != null)
+			channel.close();
+		channel = c;
+		map = m;
+		generation = gen;
+	}
+
+	/**
+	 * Append a change of the service to the log. Called by the service while it is locked, so records are in the order
+	 * the changes were made.
+	 * @param version The version of the service after the change, -1 if the change keeps the version.
+	 * @param op The change.
+	 */
+	synchronized void append(long version, TheaterUpdate.Operation op){
+		if(map == null) return;
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(version);
+			out.writeBoolean(op.reserve);
+			out.writeUTF(op.name);
+			out.writeInt(op.seats.size());
+			for(int No : op.seats)
+				out.writeInt(No);
+			byte[] body = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			int pos = map.position();
+			if(map.capacity() - pos < body.length + 12)	//Keep room for the zero length ending the log
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(map.capacity() * 2L, pos + body.length + 12L));
+			map.position(pos + 8);
+			map.put(body);
+			map.putInt(pos + 4, (int) crc.getValue());
+			map.putInt(pos, body.length);	//The record is complete
+			if(map.position() > CHECKPOINT_BYTES && !checkpointDue){
+				checkpointDue = true;
+				due.add(this);
+			}
+		}catch(IOException e){
+			System.err.println("Write-ahead log of "+dir+" failed, changes are not logged anymore");
+			e.printStackTrace();
+			map = null;
+		}
+	}
+
+	/**
+	 * Apply the records of a log to a service.
+	 * @param file The log.
+	 * @param s The service.
+	 * @return The number of records applied.
+	 * @throws IOException If the log cannot be read.
+	 */
+	private static int replay(File file, TheaterService s) throws IOException{
+		FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		int n = 0;
+		try{
+			MappedByteBuffer m = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+			CRC32 crc = new CRC32();
+			while(m.remaining() >= 8){
+				int length = m.getInt();
+				int sum = m.getInt();
+				if(length <= 0 || length > m.remaining()) break;	//The end of the log, or a record cut short
+				byte[] body = new byte[length];
+				m.get(body);
+				crc.reset();
+				crc.update(body);
+				if((int) crc.getValue() != sum) break;
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+				long version = in.readLong();
+				boolean reserve = in.readBoolean();
+				String name = in.readUTF();
+				HashSet<Integer> seats = new HashSet<Integer>();
+				for(int i = in.readInt(); i > 0; i--)
+					seats.add(in.readInt());
+				s.replay(version, new TheaterUpdate.Operation(name, reserve, seats));
+				n++;
+			}
+		}finally{
+			c.close();
+		}
+		return n;
+	}
+
+	/**
+	 * Return the generations of the logs in the directory, in ascending order.
+	 * @return The generations.
+	 */
+	private TreeSet<Long> logGenerations(){
+		TreeSet<Long> ret = new TreeSet<Long>();
+		String[] names = dir.list();
+		if(names != null)
+			for(String name : names)
+				if(name.startsWith("wal-"))
+					try{
+						ret.add(Long.parseLong(name.substring(4)));
+					}catch(NumberFormatException e){}
+		return ret;
+	}
+}